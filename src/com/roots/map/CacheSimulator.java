@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * CacheSimulator replays a recorded trace of tile lookups against the {@link EvictionPolicy}s and reports
+ * the hit rate per policy and cache size. Traces are recorded with {@link MapPanel.TileCache#setTrace(java.io.Writer)}
+ * or by starting the application with the system property <code>mappanel.trace.file</code>.
+ *
+ * <p>A trace has one event per line, <code>v zoom centerX centerY</code> for a viewport change (center in
+ * tiles at that zoom level) and <code>a server zoom x y</code> for a tile lookup. The simulated cache counts
+ * tiles, not bytes, so sizes are given in tiles.</p>
+ *
+ * <pre>java com.roots.map.CacheSimulator trace.txt [size ...]</pre>
+ *
+ * @version $Revision$
+ */
+public final class CacheSimulator {
+
+    private static final int[] DEFAULT_SIZES = { 128, 256, 512, 1024, 2048, 4096 };
+
+    /* events, viewport changes have zoom >= 0, lookups have zoom -1 and a key */
+    private long[] keys = new long[1024];
+    private int[] zooms = new int[1024];
+    private double[] centerXs = new double[1024], centerYs = new double[1024];
+    private int count;
+    private int lookups;
+
+    public CacheSimulator(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            ++lineNumber;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+            String[] parts = line.split("\\s+");
+            try {
+                if ("v".equals(parts[0]) && parts.length == 4) {
+                    add(0, Integer.parseInt(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+                } else if ("a".equals(parts[0]) && parts.length == 5) {
+                    add(MapPanel.Tile.key(Integer.parseInt(parts[1]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                            Integer.parseInt(parts[2])), -1, 0, 0);
+                    ++lookups;
+                } else {
+                    throw new IOException("bad trace event in line " + lineNumber + ": " + line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("bad number in line " + lineNumber + ": " + line);
+            }
+        }
+    }
+
+    private void add(long key, int zoom, double centerX, double centerY) {
+        if (count == keys.length) {
+            int n = count * 2;
+            keys = Arrays.copyOf(keys, n);
+            zooms = Arrays.copyOf(zooms, n);
+            centerXs = Arrays.copyOf(centerXs, n);
+            centerYs = Arrays.copyOf(centerYs, n);
+        }
+        keys[count] = key;
+        zooms[count] = zoom;
+        centerXs[count] = centerX;
+        centerYs[count] = centerY;
+        ++count;
+    }
+
+    /**
+     * @return the number of tile lookups in the trace
+     */
+    public int getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Replays the trace against a cache of the given size, a miss loads the tile into the cache.
+     * @param policy a fresh policy, policies keep state
+     * @param size the capacity of the cache in tiles
+     * @return the share of lookups that were hits
+     */
+    public double hitRate(EvictionPolicy policy, int size) {
+        PolicyLruMap<Boolean> cache = new PolicyLruMap<Boolean>(policy, size, null);
+        int hits = 0;
+        for (int i = 0; i < count; ++i) {
+            if (zooms[i] >= 0) {
+                policy.setViewport(zooms[i], centerXs[i], centerYs[i]);
+            } else if (cache.get(keys[i]) != null) {
+                ++hits;
+            } else {
+                cache.put(keys[i], Boolean.TRUE, 1);
+            }
+        }
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: CacheSimulator trace [size ...]");
+            System.exit(1);
+        }
+        CacheSimulator simulator;
+        FileReader reader = new FileReader(args[0]);
+        try {
+            simulator = new CacheSimulator(reader);
+        } finally {
+            reader.close();
+        }
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+        System.out.println(simulator.getLookups() + " lookups in " + args[0]);
+        ArrayList<String> names = new ArrayList<String>();
+        for (EvictionPolicy policy : createPolicies(1))
+            names.add(policy.getName());
+        System.out.print(String.format("%8s", "size"));
+        for (String name : names)
+            System.out.print(String.format("%12s", name));
+        System.out.println();
+        for (int size : sizes) {
+            System.out.print(String.format("%8d", size));
+            for (EvictionPolicy policy : createPolicies(size))
+                System.out.print(String.format("%11.2f%%", 100 * simulator.hitRate(policy, size)));
+            System.out.println();
+        }
+    }
+
+    private static EvictionPolicy[] createPolicies(int size) {
+        return new EvictionPolicy[] { EvictionPolicy.lru(), EvictionPolicy.tinyLfu(size), EvictionPolicy.viewport() };
+    }
+}
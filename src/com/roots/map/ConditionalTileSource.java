@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.IOException;
+
+
+/**
+ * A {@link TileSource} that can tell whether a tile changed since it was loaded, like a tileserver
+ * reached via http answering <code>If-None-Match</code> and <code>If-Modified-Since</code> requests.
+ * The {@link TileService} uses it to revalidate expired tiles without transferring them again.
+ *
+ * @version $Revision$
+ */
+public interface ConditionalTileSource extends TileSource {
+
+    /**
+     * Reads a tile unless it is unchanged since it was delivered with the given validators.
+     * @param etag the <code>ETag</code> of the copy at hand or <code>null</code>
+     * @param lastModified the <code>Last-Modified</code> of the copy at hand or <code>null</code>
+     * @return the tile, a {@link TileResponse#notModified(String, String, long) not modified} answer or
+     *         <code>null</code> if the source has no such tile
+     * @throws IOException if reading the tile failed
+     */
+    TileResponse loadTile(int zoom, int x, int y, String etag, String lastModified) throws IOException;
+}
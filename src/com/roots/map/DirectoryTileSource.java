@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * DirectoryTileSource reads tiles from a directory tree laid out like a tileserver,
+ * <code>root/zoom/x/y.png</code>. Tiles may also be stored as jpg files.
+ *
+ * @version $Revision$
+ */
+public final class DirectoryTileSource implements TileSource {
+
+    private static final String[] EXTENSIONS = { ".png", ".jpg", ".jpeg" };
+
+    private final File root;
+    private final int maxZoom;
+
+    public DirectoryTileSource(File root) throws IOException {
+        if (!root.isDirectory())
+            throw new IOException("not a directory: " + root);
+        this.root = root;
+        int maxZoom = -1;
+        String[] names = root.list();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    if (new File(root, name).isDirectory())
+                        maxZoom = Math.max(maxZoom, Integer.parseInt(name));
+                } catch (NumberFormatException e) {
+                    // not a zoom level
+                }
+            }
+        }
+        if (maxZoom < 0)
+            throw new IOException("no zoom level directories in " + root);
+        this.maxZoom = maxZoom;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public byte[] loadTile(int zoom, int x, int y) throws IOException {
+        File dir = new File(root, zoom + File.separator + x);
+        for (String extension : EXTENSIONS) {
+            File file = new File(dir, y + extension);
+            if (!file.isFile())
+                continue;
+            byte[] data = new byte[(int) file.length()];
+            InputStream in = new FileInputStream(file);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int n = in.read(data, offset, data.length - offset);
+                    if (n < 0)
+                        throw new IOException("unexpected end of file " + file);
+                    offset += n;
+                }
+            } finally {
+                in.close();
+            }
+            return data;
+        }
+        return null;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public boolean isLocal() {
+        return true;
+    }
+
+    public String toString() {
+        return root.toURI().toString();
+    }
+}
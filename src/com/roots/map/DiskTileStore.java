@@ -0,0 +1,695 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+/**
+ * DiskTileStore keeps raw tile bytes (the png files as delivered by the tileserver) on disk so they
+ * survive restarts of the application.
+ *
+ * <p>Tiles are appended to pack files of up to {@link #PACK_SIZE} bytes. A memory-mapped index file maps
+ * (server, zoom, x, y) to the pack, offset and crc of the stored bytes. Every record in a pack carries
+ * its own header, so a lost or damaged index is rebuilt by scanning the packs. The crc is checked on
+ * every read and damaged records are treated as missing. Records start with the expiry and the http
+ * validators of the tile, see {@link TileResponse}, records written by older versions lack them.</p>
+ *
+ * <p>The store is bounded by a size budget. When the packs exceed the budget the oldest packs are
+ * dropped, and packs that contain mostly overwritten records are compacted, both on a background
+ * thread. Records of pinned regions survive the eviction of their pack, they are copied into the
+ * current pack first.</p>
+ *
+ * @version $Revision$
+ */
+public final class DiskTileStore implements Closeable {
+
+    private static final Logger log = Logger.getLogger(DiskTileStore.class.getName());
+
+    /* constants ... */
+    private static final int PACK_SIZE = 32 * 1024 * 1024;
+    /* records without and with validators */
+    private static final int RECORD_MAGIC_V1 = 0x4d505431;
+    private static final int RECORD_MAGIC = 0x4d505432;
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int INDEX_MAGIC = 0x4d504931;
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 32;
+    private static final int INITIAL_CAPACITY = 1 << 14;
+    private static final String INDEX_NAME = "tiles.idx";
+    private static final String PACK_SUFFIX = ".pack";
+    private static final int COORD_MASK = (1 << 29) - 1;
+
+    private static final class PinnedRegion {
+        private final int serverId;
+        private final TileRegion region;
+        private PinnedRegion(int serverId, TileRegion region) {
+            this.serverId = serverId;
+            this.region = region;
+        }
+    }
+
+    private final File directory;
+    private long maxBytes;
+
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+
+    /* pack id -> open file, pack id -> bytes still referenced by the index */
+    private final TreeMap<Integer, RandomAccessFile> packs = new TreeMap<Integer, RandomAccessFile>();
+    private final HashMap<Integer, long[]> liveBytes = new HashMap<Integer, long[]>();
+    private int currentPack;
+    private long bytes;
+    private boolean closed;
+    /* regions whose records are kept on eviction */
+    private final ArrayList<PinnedRegion> pinnedRegions = new ArrayList<PinnedRegion>();
+
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "disktilestore maintenance");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    private boolean maintenanceScheduled;
+
+    /**
+     * Opens or creates a store in the given directory.
+     * @param directory the directory holding the index and the pack files
+     * @param maxBytes the size budget for all pack files
+     * @throws IOException if the directory cannot be used
+     */
+    public DiskTileStore(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create directory " + directory);
+        openPacks();
+        if (!openIndex())
+            rebuildIndex();
+        scheduleMaintenance();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        scheduleMaintenance();
+    }
+
+    /**
+     * @return the number of bytes used by all pack files
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of tiles in the store
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Reads the bytes of a tile.
+     * @return the bytes or <code>null</code> if the tile is not stored or its record is damaged
+     */
+    public byte[] get(String server, int zoom, int x, int y) {
+        TileResponse tile = getTile(server, zoom, x, y);
+        return tile == null ? null : tile.getData();
+    }
+
+    /**
+     * Reads the bytes of a tile together with its validators and expiry.
+     * @return the tile or <code>null</code> if the tile is not stored or its record is damaged
+     */
+    public synchronized TileResponse getTile(String server, int zoom, int x, int y) {
+        if (closed)
+            return null;
+        long key = tileKey(zoom, x, y);
+        int serverId = serverId(server);
+        int slot = findSlot(key, serverId);
+        if (!isUsed(slot))
+            return null;
+        int pack = index.getInt(slotOffset(slot) + 12);
+        int offset = index.getInt(slotOffset(slot) + 16);
+        try {
+            byte[] payload = readRecord(pack, offset, key, serverId);
+            return payload == null ? null : decodePayload(payload);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to read tile " + zoom + "/" + x + "/" + y + " from pack " + pack, e);
+            return null;
+        }
+    }
+
+    /**
+     * Appends the bytes of a tile to the current pack and points the index to them. An older copy
+     * of the same tile becomes garbage and is reclaimed by compaction.
+     */
+    public void put(String server, int zoom, int x, int y, byte[] data) throws IOException {
+        put(server, zoom, x, y, new TileResponse(data, null, null, 0));
+    }
+
+    /**
+     * Stores a tile with its validators and expiry, which replace those of an older copy.
+     */
+    public synchronized void put(String server, int zoom, int x, int y, TileResponse tile) throws IOException {
+        if (closed)
+            return;
+        if (tile.isNotModified())
+            throw new IllegalArgumentException("tile without data");
+        long key = tileKey(zoom, x, y);
+        int serverId = serverId(server);
+        byte[] payload = encodePayload(tile);
+        int crc = crc(payload);
+        int offset = append(key, serverId, payload, crc);
+        insert(key, serverId, currentPack, offset, payload.length, crc);
+        if (bytes > maxBytes)
+            scheduleMaintenance();
+    }
+
+    /**
+     * Keeps the tiles of a region when their pack gets evicted. The pinned tiles still count
+     * against the size budget, so pinned regions should stay well below it.
+     */
+    public synchronized void addPinnedRegion(String server, TileRegion region) {
+        pinnedRegions.add(new PinnedRegion(serverId(server), region));
+    }
+
+    public synchronized void removePinnedRegion(String server, TileRegion region) {
+        int serverId = serverId(server);
+        for (int i = 0; i < pinnedRegions.size(); ++i) {
+            PinnedRegion pinned = pinnedRegions.get(i);
+            if (pinned.serverId == serverId && pinned.region == region) {
+                pinnedRegions.remove(i);
+                return;
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        maintenance.shutdown();
+        index.force();
+        closeQuietly(indexFile);
+        for (RandomAccessFile pack : packs.values())
+            closeQuietly(pack);
+        packs.clear();
+    }
+
+    //-------------------------------------------------------------------------
+    // packs
+
+    private void openPacks() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(PACK_SUFFIX))
+                    continue;
+                try {
+                    int id = Integer.parseInt(name.substring(0, name.length() - PACK_SUFFIX.length()));
+                    packs.put(id, new RandomAccessFile(file, "rw"));
+                    bytes += file.length();
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        if (packs.isEmpty())
+            createPack(0);
+        currentPack = packs.lastKey();
+        for (Integer id : packs.keySet())
+            liveBytes.put(id, new long[1]);
+    }
+
+    private File packFile(int id) {
+        return new File(directory, String.format("%08d%s", id, PACK_SUFFIX));
+    }
+
+    private void createPack(int id) throws IOException {
+        packs.put(id, new RandomAccessFile(packFile(id), "rw"));
+        liveBytes.put(id, new long[1]);
+        currentPack = id;
+    }
+
+    private void deletePack(int id) {
+        RandomAccessFile pack = packs.remove(id);
+        liveBytes.remove(id);
+        if (pack == null)
+            return;
+        File file = packFile(id);
+        bytes -= file.length();
+        closeQuietly(pack);
+        if (!file.delete())
+            log.log(Level.WARNING, "failed to delete pack " + file);
+    }
+
+    private int append(long key, int serverId, byte[] data, int crc) throws IOException {
+        RandomAccessFile pack = packs.get(currentPack);
+        if (pack.length() + RECORD_HEADER_SIZE + data.length > PACK_SIZE && pack.length() > 0) {
+            createPack(currentPack + 1);
+            pack = packs.get(currentPack);
+        }
+        int offset = (int) pack.length();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        buffer.putInt(RECORD_MAGIC).putInt(serverId).putLong(key).putInt(data.length).putInt(crc).put(data);
+        buffer.flip();
+        FileChannel channel = pack.getChannel();
+        int position = offset;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        bytes += RECORD_HEADER_SIZE + data.length;
+        return offset;
+    }
+
+    /**
+     * @return the payload of the record, records of older versions are converted
+     */
+    private byte[] readRecord(int packId, int offset, long key, int serverId) throws IOException {
+        RandomAccessFile pack = packs.get(packId);
+        if (pack == null)
+            return null;
+        FileChannel channel = pack.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, offset);
+        header.flip();
+        int magic = header.getInt();
+        if ((magic != RECORD_MAGIC && magic != RECORD_MAGIC_V1) || header.getInt() != serverId || header.getLong() != key)
+            return null;
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length < 0 || offset + RECORD_HEADER_SIZE + (long) length > channel.size())
+            return null;
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(channel, data, offset + RECORD_HEADER_SIZE);
+        CRC32 check = new CRC32();
+        check.update(data.array());
+        if ((int) check.getValue() != crc) {
+            log.log(Level.WARNING, "crc mismatch in pack " + packId + " at offset " + offset);
+            return null;
+        }
+        if (magic == RECORD_MAGIC_V1)
+            return encodePayload(new TileResponse(data.array(), null, null, 0));
+        return data.array();
+    }
+
+    /* payload layout: expires (long), etag (utf), last modified (utf), data. empty strings stand for null */
+    private static byte[] encodePayload(TileResponse tile) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(tile.getData().length + 64);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeLong(tile.getExpires());
+        data.writeUTF(tile.getETag() == null ? "" : tile.getETag());
+        data.writeUTF(tile.getLastModified() == null ? "" : tile.getLastModified());
+        data.write(tile.getData());
+        data.flush();
+        return out.toByteArray();
+    }
+
+    private static TileResponse decodePayload(byte[] payload) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(payload);
+        DataInputStream data = new DataInputStream(in);
+        long expires = data.readLong();
+        String etag = data.readUTF();
+        String lastModified = data.readUTF();
+        byte[] bytes = new byte[in.available()];
+        data.readFully(bytes);
+        return new TileResponse(bytes, etag.length() == 0 ? null : etag, lastModified.length() == 0 ? null : lastModified, expires);
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("unexpected end of pack");
+            position += n;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    // index, an open addressing hashtable with linear probing in a mapped file.
+    // slot layout: key (long), server (int), pack (int), offset (int), length (int), crc (int), used (int)
+
+    private boolean openIndex() throws IOException {
+        File file = new File(directory, INDEX_NAME);
+        boolean existed = file.exists() && file.length() >= INDEX_HEADER_SIZE;
+        indexFile = new RandomAccessFile(file, "rw");
+        if (existed) {
+            MappedByteBuffer header = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE);
+            int magic = header.getInt(0);
+            int capacity = header.getInt(4);
+            if (magic == INDEX_MAGIC && capacity > 0 && Integer.bitCount(capacity) == 1
+                    && file.length() == INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                mapIndex(capacity);
+                count = 0;
+                for (int slot = 0; slot < capacity; ++slot) {
+                    if (!isUsed(slot))
+                        continue;
+                    ++count;
+                    long[] live = liveBytes.get(index.getInt(slotOffset(slot) + 12));
+                    if (live != null)
+                        live[0] += RECORD_HEADER_SIZE + index.getInt(slotOffset(slot) + 20);
+                }
+                index.putInt(8, count);
+                return true;
+            }
+            log.log(Level.WARNING, "tile index in " + directory + " is damaged, rebuilding");
+            indexFile.setLength(0);
+        }
+        mapIndex(INITIAL_CAPACITY);
+        clearIndex();
+        return !existed && bytes == 0;
+    }
+
+    private void mapIndex(int capacity) throws IOException {
+        this.capacity = capacity;
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, capacity);
+    }
+
+    private void clearIndex() {
+        byte[] zeros = new byte[SLOT_SIZE * 256];
+        for (int position = INDEX_HEADER_SIZE; position < index.capacity(); position += zeros.length) {
+            index.position(position);
+            index.put(zeros, 0, Math.min(zeros.length, index.capacity() - position));
+        }
+        index.position(0);
+        count = 0;
+        index.putInt(8, 0);
+        for (long[] live : liveBytes.values())
+            live[0] = 0;
+    }
+
+    /**
+     * Restores the index by scanning all packs in order, later records win.
+     */
+    private void rebuildIndex() throws IOException {
+        clearIndex();
+        for (Integer id : new ArrayList<Integer>(packs.keySet())) {
+            FileChannel channel = packs.get(id).getChannel();
+            long size = channel.size();
+            long offset = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                header.flip();
+                int magic = header.getInt();
+                if (magic != RECORD_MAGIC && magic != RECORD_MAGIC_V1)
+                    break;
+                int serverId = header.getInt();
+                long key = header.getLong();
+                int length = header.getInt();
+                int crc = header.getInt();
+                if (length < 0 || offset + RECORD_HEADER_SIZE + length > size)
+                    break;
+                insert(key, serverId, id, (int) offset, length, crc);
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            if (offset < size) {
+                log.log(Level.WARNING, "truncating damaged pack " + id + " at offset " + offset);
+                bytes -= size - offset;
+                channel.truncate(offset);
+            }
+        }
+    }
+
+    private void insert(long key, int serverId, int pack, int offset, int length, int crc) throws IOException {
+        if ((count + 1) * 10L > capacity * 7L)
+            grow();
+        int slot = findSlot(key, serverId);
+        int base = slotOffset(slot);
+        if (isUsed(slot)) {
+            long[] live = liveBytes.get(index.getInt(base + 12));
+            if (live != null)
+                live[0] -= RECORD_HEADER_SIZE + index.getInt(base + 20);
+        } else {
+            ++count;
+            index.putInt(8, count);
+        }
+        index.putLong(base, key);
+        index.putInt(base + 8, serverId);
+        index.putInt(base + 12, pack);
+        index.putInt(base + 16, offset);
+        index.putInt(base + 20, length);
+        index.putInt(base + 24, crc);
+        index.putInt(base + 28, 1);
+        liveBytes.get(pack)[0] += RECORD_HEADER_SIZE + length;
+    }
+
+    private void grow() throws IOException {
+        reindex(capacity * 2, -1);
+    }
+
+    /**
+     * Rehashes the index into a table of the given capacity, dropping all entries that point into
+     * the given pack.
+     */
+    private void reindex(int newCapacity, int droppedPack) throws IOException {
+        ArrayList<int[]> entries = new ArrayList<int[]>(count);
+        long[] keys = new long[count];
+        int n = 0;
+        for (int slot = 0; slot < capacity; ++slot) {
+            if (!isUsed(slot))
+                continue;
+            int base = slotOffset(slot);
+            if (index.getInt(base + 12) == droppedPack)
+                continue;
+            keys[n++] = index.getLong(base);
+            entries.add(new int[] {
+                    index.getInt(base + 8), index.getInt(base + 12), index.getInt(base + 16),
+                    index.getInt(base + 20), index.getInt(base + 24) });
+        }
+        if (newCapacity != capacity)
+            mapIndex(newCapacity);
+        clearIndex();
+        for (int i = 0; i < n; ++i) {
+            int[] e = entries.get(i);
+            insert(keys[i], e[0], e[1], e[2], e[3], e[4]);
+        }
+        index.force();
+    }
+
+    private int findSlot(long key, int serverId) {
+        int mask = capacity - 1;
+        int slot = hash(key, serverId) & mask;
+        while (isUsed(slot)) {
+            int base = slotOffset(slot);
+            if (index.getLong(base) == key && index.getInt(base + 8) == serverId)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean isUsed(int slot) {
+        return index.getInt(slotOffset(slot) + 28) != 0;
+    }
+
+    private static int slotOffset(int slot) {
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(long key, int serverId) {
+        long h = (key ^ ((long) serverId << 32)) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long tileKey(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    /**
+     * Servers are identified by a hash of their url which stays the same across restarts.
+     */
+    private static int serverId(String server) {
+        CRC32 crc = new CRC32();
+        crc.update(server.getBytes());
+        return (int) crc.getValue();
+    }
+
+    //-------------------------------------------------------------------------
+    // background eviction and compaction
+
+    private synchronized void scheduleMaintenance() {
+        if (maintenanceScheduled || closed)
+            return;
+        maintenanceScheduled = true;
+        maintenance.execute(new Runnable() {
+            public void run() {
+                try {
+                    maintain();
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "maintenance of tile store " + directory + " failed", e);
+                } finally {
+                    synchronized (DiskTileStore.this) {
+                        maintenanceScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private void maintain() throws IOException {
+        Integer[] ids;
+        synchronized (this) {
+            // every pack at most once, pinned records copied out of a pack must not be evicted again right away
+            ids = packs.keySet().toArray(new Integer[packs.size()]);
+            for (int i = 0; i < ids.length && !closed && bytes > maxBytes && packs.size() > 1; ++i)
+                evictPack(ids[i]);
+            ids = packs.keySet().toArray(new Integer[packs.size()]);
+        }
+        for (Integer id : ids)
+            compactPack(id);
+    }
+
+    private synchronized void evictPack(int id) throws IOException {
+        if (id == currentPack)
+            createPack(currentPack + 1);
+        if (!pinnedRegions.isEmpty())
+            copyPinned(id);
+        reindex(capacity, id);
+        deletePack(id);
+    }
+
+    /* must hold the lock */
+    private void copyPinned(int id) throws IOException {
+        int from = 0;
+        int slot;
+        while ((slot = nextSlotInPack(id, from)) >= 0) {
+            int base = slotOffset(slot);
+            long key = index.getLong(base);
+            int serverId = index.getInt(base + 8);
+            from = slot + 1;
+            if (!isPinned(serverId, key))
+                continue;
+            byte[] data = readRecord(id, index.getInt(base + 16), key, serverId);
+            if (data == null)
+                continue;
+            int crc = crc(data);
+            int oldCapacity = capacity;
+            int offset = append(key, serverId, data, crc);
+            insert(key, serverId, currentPack, offset, data.length, crc);
+            if (oldCapacity != capacity)
+                from = 0;
+        }
+    }
+
+    private boolean isPinned(int serverId, long key) {
+        for (PinnedRegion pinned : pinnedRegions) {
+            if (pinned.serverId == serverId
+                    && pinned.region.contains((int) (key >>> 58), (int) (key >>> 29) & COORD_MASK, (int) key & COORD_MASK))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the records still referenced by the index out of a pack that is mostly garbage and
+     * deletes the pack afterwards.
+     */
+    private void compactPack(int id) throws IOException {
+        synchronized (this) {
+            if (closed || id == currentPack || !packs.containsKey(id))
+                return;
+            long size = packFile(id).length();
+            if (liveBytes.get(id)[0] * 2 > size)
+                return;
+        }
+        int from = 0;
+        while (true) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                int slot = nextSlotInPack(id, from);
+                if (slot < 0) {
+                    deletePack(id);
+                    return;
+                }
+                int base = slotOffset(slot);
+                long key = index.getLong(base);
+                int serverId = index.getInt(base + 8);
+                byte[] data = readRecord(id, index.getInt(base + 16), key, serverId);
+                if (data == null) {
+                    // damaged, leave it to the final reindex
+                    reindex(capacity, id);
+                    deletePack(id);
+                    return;
+                }
+                int crc = crc(data);
+                int oldCapacity = capacity;
+                int offset = append(key, serverId, data, crc);
+                insert(key, serverId, currentPack, offset, data.length, crc);
+                from = oldCapacity == capacity ? slot + 1 : 0;
+            }
+        }
+    }
+
+    private int nextSlotInPack(int pack, int from) {
+        for (int slot = from; slot < capacity; ++slot) {
+            if (isUsed(slot) && index.getInt(slotOffset(slot) + 12) == pack)
+                return slot;
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public String toString() {
+        return "DiskTileStore [directory=" + directory + ", count=" + count + ", bytes=" + bytes + ", maxBytes=" + maxBytes
+                + ", packs=" + Arrays.toString(packs.keySet().toArray()) + "]";
+    }
+}
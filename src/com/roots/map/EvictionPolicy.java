@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * EvictionPolicy decides which tiles a {@link MapPanel.TileCache} drops when it runs out of budget.
+ * Tiles are identified by their packed keys, see {@link MapPanel.Tile}.
+ *
+ * <p>The cache offers the policy the least recently used entries as victims and asks whether a new tile
+ * should be admitted at the expense of the chosen victim. Policies with an admission window
+ * ({@link #getWindowFraction()}) get new tiles into a small lru window first, only tiles falling out of
+ * the window have to compete with the victim. The decoded tier always admits new tiles, since they are
+ * the ones being painted.</p>
+ *
+ * <p>The built-in policies are {@link #lru()}, {@link #tinyLfu(int)} and {@link #viewport()}. Policies
+ * are shared by the segments of a cache and called concurrently.</p>
+ *
+ * @version $Revision$
+ */
+public abstract class EvictionPolicy {
+
+    /**
+     * Strict least recently used eviction, every tile is admitted.
+     */
+    public static EvictionPolicy lru() {
+        return new EvictionPolicy() {
+            public String getName() {
+                return "lru";
+            }
+        };
+    }
+
+    /**
+     * W-TinyLFU: new tiles go to an lru window of 1% of the budget. Tiles falling out of the window only
+     * replace the lru victim of the main area if they were requested more often recently, which keeps
+     * fast pans and one-time sweeps from flushing the working set.
+     * @param expectedSize the number of tiles the cache is expected to hold, sizes the frequency sketch
+     */
+    public static EvictionPolicy tinyLfu(int expectedSize) {
+        return new TinyLfuPolicy(expectedSize);
+    }
+
+    /**
+     * Evicts tiles far from the current viewport first. Among the least recently used tiles the one with
+     * the largest distance to the viewport center, measured at the viewport's zoom level and with a
+     * penalty per zoom level of difference, is dropped.
+     */
+    public static EvictionPolicy viewport() {
+        return new ViewportPolicy();
+    }
+
+    /**
+     * @return a short name used in reports
+     */
+    public abstract String getName();
+
+    /**
+     * @return the share of the budget used as admission window, 0 if new tiles are always admitted
+     */
+    public double getWindowFraction() {
+        return 0;
+    }
+
+    /**
+     * @return the number of least recently used entries offered to {@link #selectVictim(long[], int)}
+     */
+    public int getSampleSize() {
+        return 1;
+    }
+
+    /**
+     * Called for every lookup and insert of a tile.
+     */
+    public void recordAccess(long key) {
+    }
+
+    /**
+     * Tells the policy where the map is looking at.
+     * @param zoom the zoom level of the viewport
+     * @param centerX the x coordinate of the viewport center in tiles at that zoom level
+     * @param centerY the y coordinate of the viewport center in tiles at that zoom level
+     */
+    public void setViewport(int zoom, double centerX, double centerY) {
+    }
+
+    /**
+     * Chooses the entry to evict.
+     * @param candidates the keys of the least recently used entries, eldest first
+     * @param count the number of valid candidates
+     * @return the index of the victim in candidates
+     */
+    public int selectVictim(long[] candidates, int count) {
+        return 0;
+    }
+
+    /**
+     * Decides whether a tile falling out of the admission window replaces the victim.
+     */
+    public boolean admit(long candidate, long victim) {
+        return true;
+    }
+
+    public String toString() {
+        return getName();
+    }
+
+    //-------------------------------------------------------------------------
+    // built-in policies
+
+    private static final class TinyLfuPolicy extends EvictionPolicy {
+        private static final int DEPTH = 4;
+        private static final long[] SEEDS = { 0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L };
+
+        /*
+         * count-min sketch with byte counters capped at 15, halved when the sample is full. it is
+         * called under the segment locks of the cache and takes no lock of its own, concurrent updates
+         * may get lost, which only makes the estimate a bit less accurate.
+         */
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        private TinyLfuPolicy(int expectedSize) {
+            int width = 64;
+            while (width < expectedSize)
+                width <<= 1;
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        public String getName() {
+            return "w-tinylfu";
+        }
+
+        public double getWindowFraction() {
+            return 0.01;
+        }
+
+        public void recordAccess(long key) {
+            boolean added = false;
+            for (int i = 0; i < DEPTH; ++i) {
+                int index = index(key, i);
+                byte count = table[i][index];
+                if (count < 15) {
+                    table[i][index] = (byte) (count + 1);
+                    added = true;
+                }
+            }
+            // exactly one thread reaches the sample size and halves the counters
+            if (added && additions.incrementAndGet() == sampleSize)
+                reset();
+        }
+
+        public boolean admit(long candidate, long victim) {
+            return frequency(candidate) > frequency(victim);
+        }
+
+        private int frequency(long key) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; ++i)
+                frequency = Math.min(frequency, table[i][index(key, i)]);
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; ++i)
+                    row[i] >>= 1;
+            }
+            additions.addAndGet(-sampleSize / 2);
+        }
+
+        private int index(long key, int row) {
+            long h = (key + SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+
+    private static final class ViewportPolicy extends EvictionPolicy {
+        private static final int SAMPLE_SIZE = 16;
+        /* a tile one zoom level away weighs like a tile this many tiles away */
+        private static final double ZOOM_PENALTY = 8;
+
+        private volatile int zoom = -1;
+        private volatile double centerX, centerY;
+
+        public String getName() {
+            return "viewport";
+        }
+
+        public int getSampleSize() {
+            return SAMPLE_SIZE;
+        }
+
+        public void setViewport(int zoom, double centerX, double centerY) {
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.zoom = zoom;
+        }
+
+        public int selectVictim(long[] candidates, int count) {
+            int zoom = this.zoom;
+            if (zoom < 0)
+                return 0;
+            double centerX = this.centerX, centerY = this.centerY;
+            int victim = 0;
+            double max = -1;
+            for (int i = 0; i < count; ++i) {
+                long key = candidates[i];
+                int z = MapPanel.Tile.z(key);
+                double scale = Math.pow(2, zoom - z);
+                double dx = (MapPanel.Tile.x(key) + 0.5) * scale - centerX;
+                double dy = (MapPanel.Tile.y(key) + 0.5) * scale - centerY;
+                double distance = Math.sqrt(dx * dx + dy * dy) + Math.abs(zoom - z) * ZOOM_PENALTY;
+                if (distance > max) {
+                    max = distance;
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+
+
+/**
+ * LongLruMap maps primitive long keys to values and keeps the entries in access order, like an
+ * access-ordered {@link java.util.LinkedHashMap}, but without allocating on lookups and updates.
+ *
+ * <p>Entries live in parallel arrays forming an open addressing table with linear probing. The
+ * lru list is threaded through the same arrays by slot index. Every entry carries an int weight,
+ * the map keeps the sum of all weights. Values must not be <code>null</code>.</p>
+ *
+ * <p>The map is not synchronized.</p>
+ *
+ * @version $Revision$
+ */
+final class LongLruMap<V> {
+
+    private static final int NONE = -1;
+
+    private long[] keys;
+    private Object[] values;
+    private int[] weights;
+    private int[] prev, next;
+    private int mask;
+    private int size;
+    private long weight;
+    private int head = NONE, tail = NONE;
+
+    LongLruMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 < expectedSize * 4)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        weights = new int[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long weight() {
+        return weight;
+    }
+
+    boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Gets the value and marks the entry as most recently used.
+     */
+    V get(long key) {
+        int slot = find(key);
+        if (slot < 0)
+            return null;
+        moveToTail(slot);
+        return value(slot);
+    }
+
+    /**
+     * Gets the value without touching the lru order.
+     */
+    V peek(long key) {
+        int slot = find(key);
+        return slot < 0 ? null : value(slot);
+    }
+
+    /**
+     * Puts the value as most recently used entry.
+     * @return the previous value or <code>null</code>
+     */
+    V put(long key, V value, int valueWeight) {
+        if (value == null)
+            throw new NullPointerException("value");
+        int slot = find(key);
+        if (slot >= 0) {
+            V old = value(slot);
+            values[slot] = value;
+            weight += valueWeight - weights[slot];
+            weights[slot] = valueWeight;
+            moveToTail(slot);
+            return old;
+        }
+        if ((size + 1) * 4 > (mask + 1) * 3) {
+            rehash((mask + 1) * 2);
+        }
+        slot = home(key);
+        while (values[slot] != null)
+            slot = (slot + 1) & mask;
+        keys[slot] = key;
+        values[slot] = value;
+        weights[slot] = valueWeight;
+        weight += valueWeight;
+        ++size;
+        linkTail(slot);
+        return null;
+    }
+
+    V remove(long key) {
+        int slot = find(key);
+        if (slot < 0)
+            return null;
+        V old = value(slot);
+        removeAt(slot);
+        return old;
+    }
+
+    void clear() {
+        for (int i = 0; i <= mask; ++i)
+            values[i] = null;
+        size = 0;
+        weight = 0;
+        head = tail = NONE;
+    }
+
+    //-------------------------------------------------------------------------
+    // slot access, slots are only valid until the next modification
+
+    /**
+     * @return the slot of the least recently used entry or -1 if the map is empty
+     */
+    int eldest() {
+        return head;
+    }
+
+    /**
+     * @return the slot of the next more recently used entry or -1
+     */
+    int newer(int slot) {
+        return next[slot];
+    }
+
+    long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    V valueAt(int slot) {
+        return value(slot);
+    }
+
+    int weightAt(int slot) {
+        return weights[slot];
+    }
+
+    void removeAt(int slot) {
+        unlink(slot);
+        weight -= weights[slot];
+        values[slot] = null;
+        --size;
+        // backward shift deletion, move following entries of the cluster into the hole
+        int hole = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null)
+                return;
+            int k = home(keys[j]);
+            boolean stays = hole <= j ? (hole < k && k <= j) : (hole < k || k <= j);
+            if (stays)
+                continue;
+            move(j, hole);
+            hole = j;
+        }
+    }
+
+    //-------------------------------------------------------------------------
+    // impl.
+
+    @SuppressWarnings("unchecked")
+    private V value(int slot) {
+        return (V) values[slot];
+    }
+
+    private int home(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int slot = home(key);
+        while (values[slot] != null) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+        weights[to] = weights[from];
+        prev[to] = prev[from];
+        next[to] = next[from];
+        if (prev[to] != NONE)
+            next[prev[to]] = to;
+        else
+            head = to;
+        if (next[to] != NONE)
+            prev[next[to]] = to;
+        else
+            tail = to;
+        values[from] = null;
+    }
+
+    private void linkTail(int slot) {
+        prev[slot] = tail;
+        next[slot] = NONE;
+        if (tail != NONE)
+            next[tail] = slot;
+        else
+            head = slot;
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (prev[slot] != NONE)
+            next[prev[slot]] = next[slot];
+        else
+            head = next[slot];
+        if (next[slot] != NONE)
+            prev[next[slot]] = prev[slot];
+        else
+            tail = prev[slot];
+    }
+
+    private void moveToTail(int slot) {
+        if (slot == tail)
+            return;
+        unlink(slot);
+        linkTail(slot);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldWeights = weights;
+        int[] oldNext = next;
+        int slot = head;
+        allocate(capacity);
+        head = tail = NONE;
+        while (slot != NONE) {
+            int s = home(oldKeys[slot]);
+            while (values[s] != null)
+                s = (s + 1) & mask;
+            keys[s] = oldKeys[slot];
+            values[s] = oldValues[slot];
+            weights[s] = oldWeights[slot];
+            linkTail(s);
+            slot = oldNext[slot];
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+
+/**
+ * MBTilesTileSource reads tiles from an MBTiles file, which is an SQLite database with a <code>tiles</code>
+ * table. The file is opened via jdbc, so a SQLite jdbc driver (e.g. xerial sqlite-jdbc) has to be on the
+ * classpath. MBTiles stores rows in tms order, the y coordinate is flipped when reading.
+ *
+ * @version $Revision$
+ */
+public final class MBTilesTileSource implements TileSource, Closeable {
+
+    private final File file;
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final int maxZoom;
+
+    public MBTilesTileSource(File file) throws IOException {
+        if (!file.isFile())
+            throw new IOException("no such file: " + file);
+        this.file = file;
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        } catch (SQLException e) {
+            throw new IOException("cannot open " + file + ", is a sqlite jdbc driver on the classpath?", e);
+        }
+        try {
+            Statement query = connection.createStatement();
+            try {
+                ResultSet rs = query.executeQuery("SELECT MAX(zoom_level) FROM tiles");
+                int zoom = -1;
+                // MAX is null for an empty table
+                if (rs.next()) {
+                    zoom = rs.getInt(1);
+                    if (rs.wasNull())
+                        zoom = -1;
+                }
+                maxZoom = zoom;
+                rs.close();
+            } finally {
+                query.close();
+            }
+            statement = connection.prepareStatement(
+                    "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?");
+        } catch (SQLException e) {
+            closeQuietly();
+            throw new IOException("not an mbtiles file: " + file, e);
+        }
+        if (maxZoom < 0) {
+            closeQuietly();
+            throw new IOException("no tiles in " + file);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized byte[] loadTile(int zoom, int x, int y) throws IOException {
+        try {
+            statement.setInt(1, zoom);
+            statement.setInt(2, x);
+            statement.setInt(3, (1 << zoom) - 1 - y);
+            ResultSet rs = statement.executeQuery();
+            try {
+                return rs.next() ? rs.getBytes(1) : null;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("failed to read tile " + zoom + "/" + x + "/" + y + " from " + file, e);
+        }
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public boolean isLocal() {
+        return true;
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException("failed to close " + file, e);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    public String toString() {
+        return file.toURI().toString();
+    }
+}
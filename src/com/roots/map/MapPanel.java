@@ -22,6 +22,7 @@ import java.awt.Font;
 import java.awt.GradientPaint;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Image;
 import java.awt.Insets;
 import java.awt.LayoutManager;
@@ -29,6 +30,7 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Toolkit;
+import java.awt.Transparency;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusAdapter;
@@ -45,14 +47,36 @@ import java.awt.event.WindowEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.VolatileImage;
 import java.beans.PropertyChangeListener;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
 import java.io.StringReader;
+import java.io.Writer;
+import java.net.ProxySelector;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.text.NumberFormat;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,6 +91,7 @@ import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JEditorPane;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
@@ -81,6 +106,9 @@ import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.event.HyperlinkEvent;
 import javax.swing.event.HyperlinkListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.text.html.HTMLDocument;
 import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.StyleSheet;
@@ -93,7 +121,8 @@ import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * MapPanel display tiles from openstreetmap as is. This simple minimal viewer supports zoom around mouse-click center and has a simple api.
- * A number of tiles are cached. See {@link #CACHE_SIZE} constant. If you use this it will create traffic on the tileserver you are
+ * A number of tiles are cached, bounded by the memory their decoded images use. See {@link TileCache#setMaxBytes(long)}.
+ * The cache and the tile loading are shared by all MapPanels, see {@link TileService}. If you use this it will create traffic on the tileserver you are
  * using. Please be conscious about this.
  *
  * This class is a JPanel which can be integrated into any swing app just by creating an instance and adding like a JLabel.
@@ -133,27 +162,109 @@ public class MapPanel extends JPanel {
 
     private static final Logger log = Logger.getLogger(MapPanel.class.getName());
 
+    /**
+     * A TileServer delivers tiles for the map. Tiles come from a {@link TileSource}, which by default
+     * fetches them via http from the server's url. Servers backed by local tiles are created with
+     * {@link #create(String, TileSource)}.
+     *
+     * <p>The url is either a prefix, tiles are fetched from <code>url + zoom/x/y.png</code>, or a template
+     * with the placeholders <code>{z}</code>, <code>{x}</code> and <code>{y}</code>. A <code>{s}</code> in the url
+     * is replaced by one of the server's subdomains, so tiles are spread across several hosts.</p>
+     */
     public static final class TileServer {
+        private static int nextId;
+        private static final TileServer[] SERVERS = new TileServer[256];
+        private static final String[] DEFAULT_SUBDOMAINS = { "a", "b", "c" };
+
+        private final int id;
         private final String url;
         private final int maxZoom;
-        private boolean broken;
+        private final TileSource source;
+        private final String[] subdomains;
+        private volatile boolean broken;
+        private CompletableFuture<Boolean> check;
 
         private TileServer(String url, int maxZoom) {
+            this(url, maxZoom, null, DEFAULT_SUBDOMAINS);
+        }
+
+        private TileServer(String url, int maxZoom, TileSource source, String[] subdomains) {
+            if (subdomains.length == 0)
+                throw new IllegalArgumentException("no subdomains given for " + url);
             this.url = url;
-            this.maxZoom = maxZoom;
+            this.maxZoom = Math.min(maxZoom, Tile.MAX_ZOOM);
+            this.subdomains = subdomains.clone();
+            this.source = source == null ? new HttpTileSource(this) : source;
+            synchronized (TileServer.class) {
+                if (nextId > 0xff)
+                    throw new IllegalStateException("too many tileservers");
+                this.id = nextId++;
+                SERVERS[id] = this;
+            }
+        }
+
+        /**
+         * @return the tileserver with the given id or <code>null</code>
+         */
+        static synchronized TileServer forId(int id) {
+            return id >= 0 && id < SERVERS.length ? SERVERS[id] : null;
+        }
+
+        /**
+         * Creates a tileserver fetching tiles via http. A <code>{s}</code> in the url is replaced by
+         * <code>a</code>, <code>b</code> or <code>c</code>.
+         * @param url the url prefix or template
+         * @param maxZoom the highest zoom level the server provides
+         */
+        public static TileServer create(String url, int maxZoom) {
+            return new TileServer(url, maxZoom);
+        }
+
+        /**
+         * Creates a tileserver fetching tiles via http from several hosts.
+         * @param url the url prefix or template containing <code>{s}</code>
+         * @param subdomains the values for <code>{s}</code>, the same tile always uses the same subdomain
+         */
+        public static TileServer create(String url, int maxZoom, String... subdomains) {
+            return new TileServer(url, maxZoom, null, subdomains);
+        }
+
+        /**
+         * Creates a tileserver reading tiles from the given source.
+         * @param name the name identifying the server, e.g. the url of the file the source reads
+         */
+        public static TileServer create(String name, TileSource source) {
+            return new TileServer(name, source.getMaxZoom(), source, DEFAULT_SUBDOMAINS);
         }
 
         public String toString() {
             return url;
         }
 
+        public TileSource getSource() {
+            return source;
+        }
+
         public int getMaxZoom() {
             return maxZoom;
         }
+        /**
+         * @return the id of the tileserver, unique within this jvm and used in tile keys
+         */
+        public int getId() {
+            return id;
+        }
         public String getURL() {
             return url;
         }
 
+        /**
+         * @return the subdomain a tile is fetched from, used in place of <code>{s}</code>
+         */
+        public String getSubdomain(int x, int y) {
+            return subdomains[((x + y) & Integer.MAX_VALUE) % subdomains.length];
+        }
+
         public boolean isBroken() {
             return broken;
         }
@@ -161,13 +272,162 @@ public class MapPanel extends JPanel {
         public void setBroken(boolean broken) {
             this.broken = broken;
         }
+
+        /**
+         * Probes the server in the background, once per server. Servers that can not be reached are
+         * marked as broken and the tile service pauses requests to them.
+         * @return the future result, <code>true</code> if the server is reachable
+         */
+        synchronized CompletableFuture<Boolean> check() {
+            if (check == null) {
+                check = source instanceof HttpTileSource ? ((HttpTileSource) source).probe() : CompletableFuture.completedFuture(Boolean.TRUE);
+                check.thenAccept(new Consumer<Boolean>() {
+                    public void accept(Boolean reachable) {
+                        if (reachable.booleanValue())
+                            return;
+                        setBroken(true);
+                        TileService.getDefault().reportUnreachable(TileServer.this, getTileString(TileServer.this, 1, 1, 1));
+                    }
+                });
+            }
+            return check;
+        }
+    }
+
+    /**
+     * Fetches tiles with one http client shared by all tileservers, which keeps connections to the
+     * servers open and uses http/2 where the server supports it. Setting the system property
+     * <code>mappanel.http.version</code> to <code>1.1</code> disables http/2.
+     *
+     * <p>Tiles expire as told by the <code>Cache-Control</code> or <code>Expires</code> headers, tiles without
+     * these headers after <code>mappanel.http.maxage</code> seconds, a week by default.</p>
+     */
+    private static final class HttpTileSource implements ConditionalTileSource {
+        private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version("1.1".equals(System.getProperty("mappanel.http.version")) ? HttpClient.Version.HTTP_1_1 : HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .proxy(ProxySelector.getDefault())
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+        private static final Duration TIMEOUT = Duration.ofSeconds(30);
+        private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(Long.getLong("mappanel.http.probetimeout", 5));
+        private static final long DEFAULT_MAX_AGE_MILLIS = Long.getLong("mappanel.http.maxage", 7 * 24 * 60 * 60) * 1000;
+
+        private final TileServer tileServer;
+
+        private HttpTileSource(TileServer tileServer) {
+            this.tileServer = tileServer;
+        }
+
+        public byte[] loadTile(int zoom, int x, int y) throws IOException {
+            TileResponse response = loadTile(zoom, x, y, null, null);
+            return response == null ? null : response.getData();
+        }
+
+        public TileResponse loadTile(int zoom, int x, int y, String etag, String lastModified) throws IOException {
+            String url = getTileString(tileServer, x, y, zoom);
+            HttpRequest.Builder request;
+            try {
+                request = HttpRequest.newBuilder(URI.create(url)).timeout(TIMEOUT).GET();
+            } catch (IllegalArgumentException e) {
+                throw new IOException("bad tile url " + url, e);
+            }
+            if (etag != null)
+                request.header("If-None-Match", etag);
+            if (lastModified != null)
+                request.header("If-Modified-Since", lastModified);
+            HttpResponse<byte[]> response;
+            try {
+                response = CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while loading " + url);
+            }
+            String newEtag = response.headers().firstValue("ETag").orElse(null);
+            String newLastModified = response.headers().firstValue("Last-Modified").orElse(null);
+            switch (response.statusCode()) {
+            case 200:
+                return new TileResponse(response.body(), newEtag, newLastModified, getExpires(response));
+            case 304:
+                return TileResponse.notModified(newEtag, newLastModified, getExpires(response));
+            case 404:
+                return null;
+            default:
+                throw new IOException("http status " + response.statusCode() + " for " + url);
+            }
+        }
+
+        /**
+         * Requests a tile of zoom level 1 without waiting for the response. The server counts as reachable
+         * if it answers within <code>mappanel.http.probetimeout</code> seconds, 5 by default.
+         */
+        private CompletableFuture<Boolean> probe() {
+            final String url = getTileString(tileServer, 1, 1, 1);
+            HttpRequest request;
+            try {
+                request = HttpRequest.newBuilder(URI.create(url)).timeout(PROBE_TIMEOUT).GET().build();
+            } catch (IllegalArgumentException e) {
+                log.log(Level.SEVERE, "bad tile url " + url);
+                return CompletableFuture.completedFuture(Boolean.FALSE);
+            }
+            return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle(new BiFunction<HttpResponse<Void>, Throwable, Boolean>() {
+                public Boolean apply(HttpResponse<Void> response, Throwable e) {
+                    if (e != null) {
+                        log.log(Level.SEVERE, "failed to get content from url " + url + ": " + e);
+                        return Boolean.FALSE;
+                    }
+                    if (response.statusCode() >= 400) {
+                        log.log(Level.SEVERE, "http status " + response.statusCode() + " for url " + url);
+                        return Boolean.FALSE;
+                    }
+                    return Boolean.TRUE;
+                }
+            });
+        }
+
+        private static long getExpires(HttpResponse<?> response) {
+            long now = System.currentTimeMillis();
+            String cacheControl = response.headers().firstValue("Cache-Control").orElse(null);
+            if (cacheControl != null) {
+                for (String directive : cacheControl.split(",")) {
+                    directive = directive.trim().toLowerCase(Locale.ROOT);
+                    if (directive.equals("no-cache") || directive.equals("no-store"))
+                        return now;
+                    if (directive.startsWith("max-age=")) {
+                        try {
+                            return now + Long.parseLong(directive.substring(8)) * 1000;
+                        } catch (NumberFormatException e) {
+                            return now;
+                        }
+                    }
+                }
+            }
+            String expires = response.headers().firstValue("Expires").orElse(null);
+            if (expires != null) {
+                try {
+                    return Math.max(1, ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli());
+                } catch (DateTimeParseException e) {
+                    // invalid dates mean already expired
+                    return now;
+                }
+            }
+            return now + DEFAULT_MAX_AGE_MILLIS;
+        }
+
+        public int getMaxZoom() {
+            return tileServer.getMaxZoom();
+        }
+
+        public boolean isLocal() {
+            return false;
+        }
     }
 
     /* constants ... */
-    private static final TileServer[] TILESERVERS = {
+    private static final ArrayList<TileServer> TILESERVERS = new ArrayList<TileServer>(Arrays.asList(
         new TileServer("http://tile.openstreetmap.org/", 18),
-        new TileServer("http://tah.openstreetmap.org/Tiles/tile/", 17),
-    };
+        new TileServer("http://tah.openstreetmap.org/Tiles/tile/", 17)
+    ));
 
     private static final String NAMEFINDER_URL = "http://nominatim.openstreetmap.org/search";
     private static final int PREFERRED_WIDTH = 320;
@@ -179,13 +439,12 @@ public class MapPanel extends JPanel {
 
 
     /* basically not be changed */
-    private static final int TILE_SIZE = 256;
-    private static final int CACHE_SIZE = 256;
+    static final int TILE_SIZE = 256;
     private static final String ABOUT_MSG =
         "MapPanel - Minimal Openstreetmap/Maptile Viewer\r\n" +
         "Web: http://mappanel.sourceforge.net\r\n" +
         "Written by stepan.rutz. Contact stepan.rutz@gmx.de\r\n\r\n" +
-        "Tileserver-URLs: " + Arrays.toString(TILESERVERS) + "\r\n" +
+        "Tileserver-URLs: " + TILESERVERS + "\r\n" +
         "Namefinder-URL: " + NAMEFINDER_URL + "\r\n" +
         "Tileserver and Namefinder are part of Openstreetmap or associated projects.\r\n\r\n" +
         "MapPanel gets its data from these servers.\r\n\r\n" +
@@ -193,15 +452,55 @@ public class MapPanel extends JPanel {
         "And keep in mind this application is just a simple alternative renderer for swing.\r\n";
 
     private static final int MAGNIFIER_SIZE = 100;
+    /* while dragging, tiles the map is predicted to show this far ahead are prefetched */
+    private static final int LOOKAHEAD_MILLIS = 400;
+    /* drag events further apart than this do not form a motion */
+    private static final int DRAG_PAUSE_MILLIS = 150;
+    /* the mouse resting this long over the map prefetches the zoom levels around it */
+    private static final int DWELL_MILLIS = 300;
+    /* a delayed zoom starts once this fraction of the target tiles is cached */
+    private static final double ZOOM_RESIDENT_FRACTION = 0.75;
+    private static final int ZOOM_DELAY_POLL_MILLIS = 20;
+    /* repaints for loaded tiles are coalesced into one per frame */
+    private static final int FRAME_MILLIS = 1000 / 60;
+    /* missing tiles are replaced by cached tiles up to this many zoom levels above or two levels below */
+    private static final int PLACEHOLDER_LEVELS = 4;
+    /* an overzoomed tile covers at least one pixel of the tile it is cut from */
+    private static final int MAX_OVERZOOM_LEVELS = 8;
+    /* retained back buffer of the map, disabled by -Dmappanel.backbuffer=false */
+    private static final boolean BACK_BUFFER = !"false".equals(System.getProperty("mappanel.backbuffer"));
 
     //-------------------------------------------------------------------------
     // tile url construction.
     // change here to support some other tile
 
     public static String getTileString(TileServer tileServer, int xtile, int ytile, int zoom) {
+        String url = tileServer.getURL();
+        if (url.indexOf("{s}") != -1)
+            url = url.replace("{s}", tileServer.getSubdomain(xtile, ytile));
+        if (url.indexOf("{z}") != -1)
+            return url.replace("{z}", Integer.toString(zoom)).replace("{x}", Integer.toString(xtile)).replace("{y}", Integer.toString(ytile));
         String number = ("" + zoom + "/" + xtile + "/" + ytile);
-        String url = tileServer.getURL() + number + ".png";
-        return url;
+        return url + number + ".png";
+    }
+
+    //-------------------------------------------------------------------------
+    // tileservers.
+
+    /**
+     * @return the tileservers to choose from, tileservers can be added with {@link #addTileServer(TileServer)}
+     */
+    public static TileServer[] getTileServers() {
+        synchronized (TILESERVERS) {
+            return TILESERVERS.toArray(new TileServer[TILESERVERS.size()]);
+        }
+    }
+
+    public static void addTileServer(TileServer tileServer) {
+        synchronized (TILESERVERS) {
+            if (!TILESERVERS.contains(tileServer))
+                TILESERVERS.add(tileServer);
+        }
     }
 
     //-------------------------------------------------------------------------
@@ -211,10 +510,32 @@ public class MapPanel extends JPanel {
     private Point mapPosition = new Point(0, 0);
     private int zoom;
 
-    private TileServer tileServer = TILESERVERS[0];
+    private TileServer tileServer = getTileServers()[0];
 
     private DragListener mouseListener = new DragListener();
-    private TileCache cache = new TileCache();
+    private final TileService tileService = TileService.getDefault();
+    private final TileService.TileListener tileListener = new TileService.TileListener() {
+        public void tileLoaded(TileServer tileServer, int x, int y, int zoom) {
+            // tiles of other zoom levels are only shown while zooming
+            if (tileServer == getTileServer() && (zoom == getZoom() || isCurrenlyInAnimationTransition()))
+                repaintMap(zoom, new Rectangle(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+        }
+
+        public void tilesAvailable(TileServer tileServer) {
+            // the whole viewport, painting requests the tiles that failed meanwhile
+            if (tileServer == getTileServer())
+                repaintMap(getZoom(), null);
+        }
+    };
+    /* region of the map to repaint with the next frame, in map coordinates of dirtyZoom, guarded by itself */
+    private final Rectangle dirtyRegion = new Rectangle();
+    private int dirtyZoom;
+    private boolean dirtyAll, repaintScheduled;
+    private final Timer repaintTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+            repaintDirtyRegion();
+        }
+    });
     private Stats stats = new Stats();
     private OverlayPanel overlayPanel = new OverlayPanel();
     private ControlPanel controlPanel = new ControlPanel();
@@ -227,6 +548,12 @@ public class MapPanel extends JPanel {
     private Point smoothPosition, smoothPivot;
     private SearchPanel searchPanel;
     private Rectangle magnifyRegion;
+    private final TileMosaic mosaic = BACK_BUFFER ? new TileMosaic(this) : null;
+    /* region in map pixels the map is predicted to show next, or null */
+    private Rectangle ahead;
+    private int zoomDelayMillis;
+    private int overzoomLevels;
+    private Timer zoomDelay;
 
     public MapPanel() {
         this(new Point(8282, 5179), 6);
@@ -262,42 +589,52 @@ public class MapPanel extends JPanel {
 //            });
 //        }
 
+        repaintTimer.setRepeats(false);
         searchPanel = new SearchPanel();
         checkTileServers();
         checkActiveTileServer();
     }
 
+    /**
+     * Starts probing the tileservers in the background, the panel paints from the cache meanwhile.
+     */
     private void checkTileServers() {
-        for (TileServer tileServer : TILESERVERS) {
-            String urlstring = getTileString(tileServer, 1, 1, 1);
-            try {
-                URL url = new URL(urlstring);
-                Object content = url.getContent();
-            } catch (Exception e) {
-                log.log(Level.SEVERE, "failed to get content from url " + urlstring);
-                tileServer.setBroken(true);
-            }
-        }
+        for (TileServer tileServer : getTileServers())
+            tileServer.check();
     }
 
+    /**
+     * Shows an error once the probe of the active tileserver failed, unless the user switched to
+     * another tileserver meanwhile.
+     */
     private void checkActiveTileServer() {
-        if (getTileServer() != null && getTileServer().isBroken()) {
-            SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    JOptionPane.showMessageDialog(
-                            SwingUtilities.getWindowAncestor(MapPanel.this),
-                            "The tileserver \"" + getTileServer().getURL() + "\" could not be reached.\r\nMaybe configuring a http-proxy is required.",
-                            "TileServer not reachable.", JOptionPane.ERROR_MESSAGE);
-                }
-            });
-        }
+        final TileServer tileServer = getTileServer();
+        if (tileServer == null)
+            return;
+        tileServer.check().thenAccept(new Consumer<Boolean>() {
+            public void accept(Boolean reachable) {
+                if (reachable.booleanValue())
+                    return;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (getTileServer() != tileServer)
+                            return;
+                        JOptionPane.showMessageDialog(
+                                SwingUtilities.getWindowAncestor(MapPanel.this),
+                                "The tileserver \"" + tileServer.getURL() + "\" could not be reached.\r\nMaybe configuring a http-proxy is required.",
+                                "TileServer not reachable.", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+            }
+        });
     }
 
     public void nextTileServer() {
-        int index = Arrays.asList(TILESERVERS).indexOf(getTileServer());
+        TileServer[] tileServers = getTileServers();
+        int index = Arrays.asList(tileServers).indexOf(getTileServer());
         if (index == -1)
             return;
-        setTileServer(TILESERVERS[(index + 1) % TILESERVERS.length]);
+        setTileServer(tileServers[(index + 1) % tileServers.length]);
         repaint();
     }
 
@@ -309,10 +646,35 @@ public class MapPanel extends JPanel {
         if(this.tileServer == tileServer)
             return;
         this.tileServer = tileServer;
-        while (getZoom() > tileServer.getMaxZoom())
+        while (getZoom() > getMaxZoom())
             zoomOut(new Point(getWidth() / 2, getHeight() / 2));
         checkActiveTileServer();
     }
+
+    /**
+     * @return the highest zoom level the map can show, the tileserver's plus the overzoom levels
+     */
+    public int getMaxZoom() {
+        return Math.min(Tile.MAX_ZOOM, getTileServer().getMaxZoom() + overzoomLevels);
+    }
+
+    public int getOverzoomLevels() {
+        return overzoomLevels;
+    }
+
+    /**
+     * Allows zooming in beyond the highest zoom level of the tileserver. The tiles of these levels
+     * are cut from the tiles of the highest level and scaled up, nothing is requested from the
+     * tileserver for them.
+     * @param overzoomLevels the number of additional levels, 0 (default) to 8
+     */
+    public void setOverzoomLevels(int overzoomLevels) {
+        if (overzoomLevels < 0 || overzoomLevels > MAX_OVERZOOM_LEVELS)
+            throw new IllegalArgumentException("overzoomLevels must be between 0 and " + MAX_OVERZOOM_LEVELS + ": " + overzoomLevels);
+        this.overzoomLevels = overzoomLevels;
+        while (getZoom() > getMaxZoom())
+            zoomOut(new Point(getWidth() / 2, getHeight() / 2));
+    }
     
     /**
      * Iff animations are used, during the animation this method
@@ -332,6 +694,21 @@ public class MapPanel extends JPanel {
         this.useAnimations = useAnimations;
     }
 
+    public int getZoomDelayMillis() {
+        return zoomDelayMillis;
+    }
+
+    /**
+     * Lets animated zooms wait for the tiles of the target zoom level, so the animation does not end
+     * on a blank map. The zoom starts once most of the target tiles are cached or the delay is over.
+     * @param zoomDelayMillis the longest delay, 0 (default) to start zooming right away
+     */
+    public void setZoomDelayMillis(int zoomDelayMillis) {
+        if (zoomDelayMillis < 0)
+            throw new IllegalArgumentException("zoomDelayMillis must not be negative: " + zoomDelayMillis);
+        this.zoomDelayMillis = zoomDelayMillis;
+    }
+
     public OverlayPanel getOverlayPanel() {
         return overlayPanel;
     }
@@ -344,14 +721,55 @@ public class MapPanel extends JPanel {
         return searchPanel;
     }
     
+    public TileService getTileService() {
+        return tileService;
+    }
+
     public TileCache getCache() {
-        return cache;
+        return tileService.getCache();
     }
     
     public Stats getStats() {
         return stats;
     }
 
+    public DiskTileStore getTileStore() {
+        return tileService.getTileStore();
+    }
+
+    /**
+     * Sets the disk store tiles are read from and written to. The store is shared with all
+     * MapPanels using the same {@link TileService}.
+     * @param tileStore the store or <code>null</code> to always fetch from the tileserver
+     */
+    public void setTileStore(DiskTileStore tileStore) {
+        tileService.setTileStore(tileStore);
+    }
+
+    /**
+     * Pins a region of the current tileserver, so going back to it needs neither fetches nor
+     * decoding. Its tiles are refreshed in the background.
+     * @param refreshIntervalMillis the interval between refreshes or 0 to never refresh
+     * @return the handle to release the region again
+     * @see TileService#pin(TileServer, TileRegion, long)
+     */
+    public TileService.Pin pinRegion(double minLon, double minLat, double maxLon, double maxLat, int minZoom, int maxZoom, long refreshIntervalMillis) {
+        return tileService.pin(getTileServer(), new TileRegion(minLon, minLat, maxLon, maxLat, minZoom, maxZoom), refreshIntervalMillis);
+    }
+
+    public void addNotify() {
+        super.addNotify();
+        tileService.addTileListener(tileListener);
+    }
+
+    public void removeNotify() {
+        tileService.removeTileListener(tileListener);
+        tileService.removeViewport(this);
+        if (mosaic != null)
+            mosaic.flush();
+        super.removeNotify();
+    }
+
     public Point getMapPosition() {
         return new Point(mapPosition.x, mapPosition.y);
     }
@@ -388,7 +806,8 @@ public class MapPanel extends JPanel {
         if (zoom == this.zoom)
             return;
         int oldZoom = this.zoom;
-        this.zoom = Math.min(getTileServer().getMaxZoom(), zoom);
+        this.zoom = Math.min(getMaxZoom(), zoom);
+        ahead = null;
         mapSize.width = getXMax();
         mapSize.height = getYMax();
         firePropertyChange("zoom", oldZoom, zoom);
@@ -403,8 +822,17 @@ public class MapPanel extends JPanel {
             zoomIn(pivot);
             return;
         }
-        if (animation != null)
+        if (animation != null || zoomDelay != null)
             return;
+        final Point p = new Point(pivot);
+        delayZoom(getZoom() + 1, pivot, new Runnable() {
+            public void run() {
+                startZoomInAnimation(p);
+            }
+        });
+    }
+
+    private void startZoomInAnimation(Point pivot) {
         mouseListener.downCoords = null;
         animation = new Animation(AnimationType.ZOOM_IN, ANIMATION_FPS, ANIMATION_DURARTION_MS) {
             protected void onComplete() {
@@ -432,8 +860,17 @@ public class MapPanel extends JPanel {
             zoomOut(pivot);
             return;
         }
-        if (animation != null)
+        if (animation != null || zoomDelay != null)
             return;
+        final Point p = new Point(pivot);
+        delayZoom(getZoom() - 1, pivot, new Runnable() {
+            public void run() {
+                startZoomOutAnimation(p);
+            }
+        });
+    }
+
+    private void startZoomOutAnimation(Point pivot) {
         mouseListener.downCoords = null;
         animation = new Animation(AnimationType.ZOOM_OUT, ANIMATION_FPS, ANIMATION_DURARTION_MS) {
             protected void onComplete() {
@@ -456,8 +893,96 @@ public class MapPanel extends JPanel {
         animation.run();
     }
 
+    /**
+     * Requests the tiles of the zoom target before the zoom starts and, if a zoom delay is set,
+     * waits until most of them are cached.
+     */
+    private void delayZoom(final int targetZoom, Point pivot, final Runnable zoom) {
+        if (targetZoom < 1 || targetZoom > getMaxZoom()) {
+            zoom.run();
+            return;
+        }
+        setZoomAhead(pivot);
+        final Rectangle target = getZoomedView(targetZoom, pivot);
+        if (requestTiles(targetZoom, target) >= ZOOM_RESIDENT_FRACTION || zoomDelayMillis <= 0) {
+            zoom.run();
+            return;
+        }
+        final long deadline = System.currentTimeMillis() + zoomDelayMillis;
+        zoomDelay = new Timer(ZOOM_DELAY_POLL_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (System.currentTimeMillis() < deadline && requestTiles(targetZoom, target) < ZOOM_RESIDENT_FRACTION)
+                    return;
+                zoomDelay.stop();
+                zoomDelay = null;
+                zoom.run();
+            }
+        });
+        zoomDelay.start();
+    }
+
+    /**
+     * Prefetches the tiles one zoom level above and below around the pivot, the levels a zoom
+     * around the pivot would show. They are fetched after the visible tiles.
+     * @param pivot the point in component coordinates
+     */
+    private void prefetchZoomLevels(Point pivot) {
+        int zoom = getZoom();
+        setZoomAhead(pivot);
+        if (zoom + 1 <= getMaxZoom())
+            requestTiles(zoom + 1, getZoomedView(zoom + 1, pivot));
+        if (zoom - 1 >= 1)
+            requestTiles(zoom - 1, getZoomedView(zoom - 1, pivot));
+    }
+
+    /**
+     * Keeps the tiles of both zoom targets around the pivot from being dropped from the queue,
+     * the view after zooming out covers the one after zooming in.
+     */
+    private void setZoomAhead(Point pivot) {
+        Rectangle zoomedOut = getZoomedView(getZoom() - 1, pivot);
+        ahead = new Rectangle(zoomedOut.x * 2, zoomedOut.y * 2, zoomedOut.width * 2, zoomedOut.height * 2);
+        updateViewport();
+    }
+
+    /**
+     * @return the view in map pixels after zooming around the pivot like {@link #zoomIn(Point)}
+     *         and {@link #zoomOut(Point)} do
+     */
+    private Rectangle getZoomedView(int targetZoom, Point pivot) {
+        Point position = getMapPosition();
+        if (targetZoom > getZoom())
+            return new Rectangle(position.x * 2 + pivot.x, position.y * 2 + pivot.y, getWidth(), getHeight());
+        return new Rectangle((position.x - pivot.x) / 2, (position.y - pivot.y) / 2, getWidth(), getHeight());
+    }
+
+    /**
+     * Requests the tiles of a view that are not cached yet.
+     * @return the fraction of the tiles already cached
+     */
+    private double requestTiles(int zoom, Rectangle view) {
+        int n = 1 << zoom;
+        int x0 = Math.max(0, (int) Math.floor((double) view.x / TILE_SIZE));
+        int y0 = Math.max(0, (int) Math.floor((double) view.y / TILE_SIZE));
+        int x1 = Math.min(n - 1, (int) Math.floor((double) (view.x + view.width) / TILE_SIZE));
+        int y1 = Math.min(n - 1, (int) Math.floor((double) (view.y + view.height) / TILE_SIZE));
+        TileServer tileServer = getTileServer();
+        TileCache cache = getCache();
+        int total = 0, cached = 0;
+        for (int y = y0; y <= y1; ++y) {
+            for (int x = x0; x <= x1; ++x) {
+                ++total;
+                if (cache.contains(tileServer, x, y, zoom))
+                    ++cached;
+                else
+                    tileService.loadTile(tileServer, x, y, zoom);
+            }
+        }
+        return total == 0 ? 1 : (double) cached / total;
+    }
+
     public void zoomIn(Point pivot) {
-        if (getZoom() >= getTileServer().getMaxZoom())
+        if (getZoom() >= getMaxZoom())
             return;
         Point mapPosition = getMapPosition();
         int dx = pivot.x;
@@ -650,20 +1175,15 @@ public class MapPanel extends JPanel {
             if (drawImage) {
                 TileCache cache = mapPanel.getCache();
                 TileServer tileServer = mapPanel.getTileServer();
-                Image image = cache.get(tileServer, x, y, zoom);
+                Image image = mapPanel.getCompatibleTile(tileServer, x, y, zoom);
                 if (image == null) {
-                    final String url = getTileString(tileServer, x, y, zoom);
-                    try {
-                        image = Toolkit.getDefaultToolkit().getImage(new URL(url));
-                    } catch (Exception e) {
-                        log.log(Level.SEVERE, "failed to load url \"" + url + "\"", e);
-                    }
-                    if (image != null)
-                        cache.put(tileServer, x, y, zoom, image);
+                    mapPanel.tileService.loadTile(tileServer, x, y, zoom);
+                    paintPlaceholder(g, cache, tileServer, x, y, zoom, dx, dy);
                 }
                 if (image != null) {
                     g.drawImage(image, dx, dy, mapPanel);
                     imageDrawn = true;
+                    ++mapPanel.getStats().drawnTileCount;
                 }
             }
             if (DEBUG && (!imageDrawn && (tileInBounds || DRAW_OUT_OF_BOUNDS))) {
@@ -678,9 +1198,232 @@ public class MapPanel extends JPanel {
 
     }
 
+    /**
+     * TileMosaic keeps the tiles painted last in an accelerated image, which covers the visible tiles
+     * plus a margin of one tile. A repaint only draws the tiles that changed since and blits the image,
+     * a pan moves the image contents by the offset and draws the tiles that became visible.
+     */
+    private static final class TileMosaic {
+        private static final int MARGIN = 1;
+
+        private final MapPanel mapPanel;
+        private VolatileImage buffer;
+        private int columns, rows;
+        /* the tile at the top left of the buffer */
+        private int originX, originY;
+        private int zoom = -1;
+        private TileServer tileServer;
+        private Color background;
+        /* the image drawn into each cell, null for the background */
+        private Image[] images;
+        private boolean[] valid;
+
+        private TileMosaic(MapPanel mapPanel) {
+            this.mapPanel = mapPanel;
+        }
+
+        /**
+         * @return <code>false</code> if there is no back buffer, the map has to be painted directly then
+         */
+        private boolean paint(Graphics2D g, Point mapPosition) {
+            GraphicsConfiguration gc = mapPanel.getGraphicsConfiguration();
+            int width = mapPanel.getWidth();
+            int height = mapPanel.getHeight();
+            if (gc == null || width <= 0 || height <= 0)
+                return false;
+            int x0 = Math.floorDiv(mapPosition.x, TILE_SIZE);
+            int y0 = Math.floorDiv(mapPosition.y, TILE_SIZE);
+            int x1 = Math.floorDiv(mapPosition.x + width - 1, TILE_SIZE) + 1;
+            int y1 = Math.floorDiv(mapPosition.y + height - 1, TILE_SIZE) + 1;
+            int neededColumns = (width + TILE_SIZE - 1) / TILE_SIZE + 1 + 2 * MARGIN;
+            int neededRows = (height + TILE_SIZE - 1) / TILE_SIZE + 1 + 2 * MARGIN;
+            if (buffer == null || columns != neededColumns || rows != neededRows) {
+                flush();
+                columns = neededColumns;
+                rows = neededRows;
+                buffer = gc.createCompatibleVolatileImage(columns * TILE_SIZE, rows * TILE_SIZE, Transparency.OPAQUE);
+                if (buffer == null)
+                    return false;
+                images = new Image[columns * rows];
+                valid = new boolean[columns * rows];
+            }
+            do {
+                int state = buffer.validate(gc);
+                if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    buffer.flush();
+                    buffer = gc.createCompatibleVolatileImage(columns * TILE_SIZE, rows * TILE_SIZE, Transparency.OPAQUE);
+                    if (buffer == null)
+                        return false;
+                    invalidate();
+                } else if (state == VolatileImage.IMAGE_RESTORED) {
+                    invalidate();
+                }
+                if (zoom != mapPanel.getZoom() || tileServer != mapPanel.getTileServer() || !mapPanel.getBackground().equals(background)) {
+                    zoom = mapPanel.getZoom();
+                    tileServer = mapPanel.getTileServer();
+                    background = mapPanel.getBackground();
+                    originX = x0 - MARGIN;
+                    originY = y0 - MARGIN;
+                    invalidate();
+                } else if (x0 < originX || y0 < originY || x1 > originX + columns || y1 > originY + rows) {
+                    shift(x0 - MARGIN, y0 - MARGIN);
+                }
+                // only the tiles within the clip, e.g. a loaded tile or the overlay
+                Rectangle clip = g.getClipBounds();
+                if (clip == null)
+                    clip = new Rectangle(0, 0, width, height);
+                int cx0 = Math.max(x0, Math.floorDiv(mapPosition.x + clip.x, TILE_SIZE));
+                int cy0 = Math.max(y0, Math.floorDiv(mapPosition.y + clip.y, TILE_SIZE));
+                int cx1 = Math.min(x1, Math.floorDiv(mapPosition.x + clip.x + clip.width - 1, TILE_SIZE) + 1);
+                int cy1 = Math.min(y1, Math.floorDiv(mapPosition.y + clip.y + clip.height - 1, TILE_SIZE) + 1);
+                Graphics2D bufferGraphics = buffer.createGraphics();
+                try {
+                    for (int y = cy0; y < cy1; ++y) {
+                        for (int x = cx0; x < cx1; ++x)
+                            paintTile(bufferGraphics, x, y);
+                    }
+                } finally {
+                    bufferGraphics.dispose();
+                }
+                g.drawImage(buffer, originX * TILE_SIZE - mapPosition.x, originY * TILE_SIZE - mapPosition.y, null);
+            } while (buffer.contentsLost());
+            return true;
+        }
+
+        /* draws the tile into its cell unless the cell shows it already */
+        private void paintTile(Graphics2D g, int x, int y) {
+            ++mapPanel.getStats().tileCount;
+            int tileCount = 1 << zoom;
+            // wrap past +/- 180 longitude
+            int tileX = x % tileCount;
+            Image image = null;
+            if (tileX >= 0 && y >= 0 && y < tileCount) {
+                image = mapPanel.getCompatibleTile(tileServer, tileX, y, zoom);
+                if (image == null)
+                    mapPanel.tileService.loadTile(tileServer, tileX, y, zoom);
+            }
+            int cell = (y - originY) * columns + (x - originX);
+            if (valid[cell] && images[cell] == image)
+                return;
+            int dx = (x - originX) * TILE_SIZE;
+            int dy = (y - originY) * TILE_SIZE;
+            g.setColor(background);
+            g.fillRect(dx, dy, TILE_SIZE, TILE_SIZE);
+            images[cell] = image;
+            if (image == null) {
+                // the placeholder is drawn again until the tile is there, it may improve meanwhile
+                valid[cell] = tileX < 0 || y < 0 || y >= tileCount;
+                if (!valid[cell])
+                    paintPlaceholder(g, mapPanel.getCache(), tileServer, tileX, y, zoom, dx, dy);
+                return;
+            }
+            // images still being produced are drawn again on the next repaint
+            valid[cell] = g.drawImage(image, dx, dy, mapPanel);
+            ++mapPanel.getStats().drawnTileCount;
+        }
+
+        /* moves the origin, the cells both old and new origin cover keep their contents */
+        private void shift(int newOriginX, int newOriginY) {
+            int dx = originX - newOriginX;
+            int dy = originY - newOriginY;
+            Image[] newImages = new Image[images.length];
+            boolean[] newValid = new boolean[valid.length];
+            if (Math.abs(dx) < columns && Math.abs(dy) < rows) {
+                Graphics2D g = buffer.createGraphics();
+                try {
+                    g.copyArea(0, 0, columns * TILE_SIZE, rows * TILE_SIZE, dx * TILE_SIZE, dy * TILE_SIZE);
+                } finally {
+                    g.dispose();
+                }
+                for (int row = Math.max(0, dy); row < Math.min(rows, rows + dy); ++row) {
+                    for (int column = Math.max(0, dx); column < Math.min(columns, columns + dx); ++column) {
+                        int from = (row - dy) * columns + column - dx;
+                        newImages[row * columns + column] = images[from];
+                        newValid[row * columns + column] = valid[from];
+                    }
+                }
+            }
+            images = newImages;
+            valid = newValid;
+            originX = newOriginX;
+            originY = newOriginY;
+        }
+
+        private void invalidate() {
+            Arrays.fill(images, null);
+            Arrays.fill(valid, false);
+        }
+
+        /**
+         * Releases the back buffer, it is created again on the next paint.
+         */
+        private void flush() {
+            if (buffer != null)
+                buffer.flush();
+            buffer = null;
+        }
+    }
+
+    /**
+     * Fills in for a tile that is not loaded yet with what the cache holds at other zoom levels, the
+     * matching part of an ancestor scaled up or else the children scaled down. Nothing is loaded for this.
+     * @return <code>true</code> if anything was drawn
+     */
+    private static boolean paintPlaceholder(Graphics2D gOrig, TileCache cache, TileServer tileServer, int x, int y, int zoom, int dx, int dy) {
+        // scales on a copy, so the hint of the caller is left as it was
+        Graphics2D g = (Graphics2D) gOrig.create();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        try {
+            for (int levels = 1; levels <= PLACEHOLDER_LEVELS && levels <= zoom; ++levels) {
+                Image ancestor = cache.peek(Tile.key(tileServer, x >> levels, y >> levels, zoom - levels));
+                if (ancestor == null)
+                    continue;
+                int size = TILE_SIZE >> levels;
+                int sx = (x & ((1 << levels) - 1)) * size;
+                int sy = (y & ((1 << levels) - 1)) * size;
+                return g.drawImage(ancestor, dx, dy, dx + TILE_SIZE, dy + TILE_SIZE, sx, sy, sx + size, sy + size, null);
+            }
+            boolean drawn = false;
+            for (int levels = 1; levels <= 2 && zoom + levels <= Tile.MAX_ZOOM && !drawn; ++levels) {
+                int count = 1 << levels;
+                int size = TILE_SIZE >> levels;
+                for (int cy = 0; cy < count; ++cy) {
+                    for (int cx = 0; cx < count; ++cx) {
+                        Image child = cache.peek(Tile.key(tileServer, (x << levels) + cx, (y << levels) + cy, zoom + levels));
+                        if (child != null)
+                            drawn |= g.drawImage(child, dx + cx * size, dy + cy * size, size, size, null);
+                    }
+                }
+            }
+            return drawn;
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Gets a tile from the cache in the format of the screen the panel is on. Tiles are decoded for
+     * the default screen, on another screen the cache keeps a converted copy. The copy is made on
+     * the decode threads, the tile is drawn as it is meanwhile.
+     */
+    private Image getCompatibleTile(TileServer tileServer, int x, int y, int zoom) {
+        TileCache cache = getCache();
+        long key = Tile.key(tileServer, x, y, zoom);
+        Image image = cache.get(key);
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (image == null || TileService.isCompatible(image, gc))
+            return image;
+        Image copy = cache.getCopy(key, image, gc);
+        if (copy != null)
+            return copy;
+        tileService.convert(key, image, gc);
+        return image;
+    }
+
     private void paintInternal(Graphics2D g) {
         stats.reset();
         long t0 = System.currentTimeMillis();
+        updateViewport();
 
         if (smoothPosition != null) {
             {
@@ -706,12 +1449,23 @@ public class MapPanel extends JPanel {
 
         if (smoothPosition == null) {
             Point position = getMapPosition();
-            Painter painter = new Painter(this, getZoom());
-            painter.paint(g, position, null);
+            if (mosaic == null || !mosaic.paint(g, position)) {
+                Painter painter = new Painter(this, getZoom());
+                painter.paint(g, position, null);
+            }
         }
 
+        getCache().setViewport(getZoom(), (double) getCenterPosition().x / TILE_SIZE, (double) getCenterPosition().y / TILE_SIZE);
+
         long t1 = System.currentTimeMillis();
         stats.dt = t1 - t0;
+        TileCache cache = getCache();
+        stats.cacheTileCount = cache.getSize();
+        stats.cacheBytes = cache.getBytes();
+        stats.cacheMaxBytes = cache.getMaxBytes();
+        stats.cacheEncodedTileCount = cache.getEncodedSize();
+        stats.cacheEncodedBytes = cache.getEncodedBytes();
+        stats.cacheMaxEncodedBytes = cache.getMaxEncodedBytes();
         if (t1 - t0 > 500 && isUseAnimations()) {
             // takes suspiciously long on my mac, so lets downgrade if > some high value
             animationRenderingHints = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
@@ -719,6 +1473,77 @@ public class MapPanel extends JPanel {
     }
 
 
+    /**
+     * Repaints a region of the map with the next frame, the regions of all calls until then are
+     * repainted at once. May be called from any thread.
+     * @param region the region in map coordinates of the zoom level, <code>null</code> for the whole panel
+     */
+    private void repaintMap(int zoom, Rectangle region) {
+        synchronized (dirtyRegion) {
+            if (region == null)
+                dirtyAll = true;
+            else if (dirtyRegion.isEmpty()) {
+                dirtyRegion.setBounds(region);
+                dirtyZoom = zoom;
+            } else if (zoom == dirtyZoom)
+                dirtyRegion.add(region);
+            else
+                dirtyAll = true;
+            if (repaintScheduled)
+                return;
+            repaintScheduled = true;
+        }
+        repaintTimer.start();
+    }
+
+    private void repaintDirtyRegion() {
+        Rectangle region;
+        boolean all;
+        synchronized (dirtyRegion) {
+            region = new Rectangle(dirtyRegion);
+            all = dirtyAll || dirtyZoom != getZoom();
+            dirtyRegion.setBounds(0, 0, 0, 0);
+            dirtyAll = false;
+            repaintScheduled = false;
+        }
+        if (all || isCurrenlyInAnimationTransition()) {
+            repaint();
+            return;
+        }
+        Point position = getMapPosition();
+        region.translate(-position.x, -position.y);
+        // wrap past +/- 180 longitude, a tile may be shown more than once
+        int mapWidth = TILE_SIZE << getZoom();
+        int x = region.x;
+        while (x + region.width > 0)
+            x -= mapWidth;
+        for (x += mapWidth; x < getWidth(); x += mapWidth)
+            repaint(x, region.y, region.width, region.height);
+    }
+
+    /**
+     * Images drawn by the map notify about their progress here, the resulting repaints are coalesced
+     * into one per frame.
+     */
+    public boolean imageUpdate(Image image, int infoflags, int x, int y, int width, int height) {
+        if ((infoflags & (ALLBITS | FRAMEBITS)) != 0)
+            repaintMap(getZoom(), null);
+        return (infoflags & (ALLBITS | ABORT)) == 0;
+    }
+
+    private void updateViewport() {
+        tileService.setViewport(this, getTileServer(), getZoom(), new Rectangle(getMapPosition(), getSize()), ahead);
+    }
+
+    /**
+     * Requests the tiles the map is predicted to show next, they are fetched after all visible tiles.
+     */
+    private void prefetchAhead() {
+        updateViewport();
+        if (ahead != null)
+            requestTiles(getZoom(), ahead);
+    }
+
     private void drawScaledRect(Graphics2D g, int cx, int cy, double f, double scale) {
         AffineTransform oldTransform = g.getTransform();
         g.translate(cx, cy);
@@ -739,6 +1564,12 @@ public class MapPanel extends JPanel {
         return String.format("%.5f", d);
     }
 
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024d);
+        return String.format("%.1f MB", bytes / (1024d * 1024d));
+    }
+
     public static double getN(int y, int z) {
         double n = Math.PI - (2.0 * Math.PI * y) / Math.pow(2.0, z);
         return n;
@@ -966,78 +1797,842 @@ public class MapPanel extends JPanel {
         }
     }
 
-    private static class Tile {
-        private final String key;
-        public final int x, y, z;
-        public Tile(String tileServer, int x, int y, int z) {
-            this.key = tileServer;
-            this.x = x;
-            this.y = y;
-            this.z = z;
-        }
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((key == null) ? 0 : key.hashCode());
-            result = prime * result + x;
-            result = prime * result + y;
-            result = prime * result + z;
-            return result;
-        }
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Tile other = (Tile) obj;
-            if (key == null) {
-                if (other.key != null)
-                    return false;
-            } else if (!key.equals(other.key))
-                return false;
-            if (x != other.x)
-                return false;
-            if (y != other.y)
-                return false;
-            if (z != other.z)
-                return false;
-            return true;
-        }
+    /**
+     * Tiles are addressed by a packed long key instead of objects, so looking them up on the paint
+     * path does not allocate. Layout is server id (8 bits), zoom (6 bits), x (25 bits), y (25 bits),
+     * which supports zoom levels up to {@link #MAX_ZOOM}.
+     */
+    public static final class Tile {
+        public static final int MAX_ZOOM = 25;
+        private static final long MASK = (1L << 25) - 1;
 
+        private Tile() {
+        }
+        public static long key(TileServer tileServer, int x, int y, int z) {
+            return key(tileServer.getId(), x, y, z);
+        }
+        public static long key(int serverId, int x, int y, int z) {
+            return ((long) serverId << 56) | ((long) z << 50) | ((x & MASK) << 25) | (y & MASK);
+        }
+        public static int serverId(long key) {
+            return (int) (key >>> 56);
+        }
+        public static int z(long key) {
+            return (int) (key >>> 50) & 0x3f;
+        }
+        public static int x(long key) {
+            return (int) ((key >>> 25) & MASK);
+        }
+        public static int y(long key) {
+            return (int) (key & MASK);
+        }
     }
 
-    private static class TileCache {
-        private LinkedHashMap<Tile,Image> map = new LinkedHashMap<Tile,Image>(CACHE_SIZE, 0.75f, true) {
-            protected boolean removeEldestEntry(java.util.Map.Entry<Tile,Image> eldest) {
-                boolean remove = size() > CACHE_SIZE;
-                return remove;
+    /**
+     * Keeps tiles in memory in two tiers. The hot tier holds decoded images, the warm tier holds the
+     * encoded png bytes as delivered by the tileserver, which are typically 10-20 times smaller.
+     * A tile is promoted from warm to hot when it is requested for painting, and a hot tile that
+     * is evicted is demoted back to the warm tier if its encoded bytes are known. Both tiers are
+     * bounded by their own byte budget, see {@link #setMaxBytes(long)} and {@link #setMaxEncodedBytes(long)}.
+     * Images that are evicted get flushed so that their pixel data is released immediately.
+     *
+     * <p>Which tiles are evicted is decided by an {@link EvictionPolicy}, lru by default. The warm tier
+     * applies the policy fully including admission, the hot tier only lets the policy choose victims,
+     * since newly decoded tiles are always the ones being painted.</p>
+     *
+     * <p>The cache is safe to use from any thread. Tiles are spread over {@link #SEGMENTS} segments
+     * which are locked independently. The budget is shared, a segment evicts its own tiles once the
+     * segments together exceed it, so eviction order is only approximately the order of the policy.</p>
+     */
+    public static final class TileCache {
+        private static final int SEGMENTS = 16;
+        /* an expired tile is revalidated at most this often */
+        private static final long REVALIDATE_RETRY_MILLIS = 60 * 1000;
+        /* keys per segment remembered as accessed within one generation */
+        private static final int COUNTED_KEYS = 1024;
+
+        /* the image is null in the warm tier */
+        private static final class Entry {
+            private final Image image;
+            private final byte[] data;
+            /* guarded by the segment's lock, 0 if the tile never expires */
+            private long expires;
+            /* guarded by the segment's lock, the validators the tileserver sent, may be null */
+            private String etag;
+            private String lastModified;
+            private Entry(Image image, byte[] data, long expires, String etag, String lastModified) {
+                this.image = image;
+                this.data = data;
+                this.expires = expires;
+                this.etag = etag;
+                this.lastModified = lastModified;
             }
-        };
+            /* guarded by the segment's lock, the image converted for screens other than the default one */
+            private Copy copies;
+            /* must hold the segment's lock */
+            private TileResponse toResponse() {
+                return data == null ? null : new TileResponse(data, etag, lastModified, expires);
+            }
+            /* must hold the segment's lock */
+            private void flush() {
+                image.flush();
+                for (Copy copy = copies; copy != null; copy = copy.next)
+                    copy.image.flush();
+            }
+        }
+
+        private static final class Copy {
+            private final GraphicsConfiguration gc;
+            private final Image image;
+            private final Copy next;
+            private Copy(GraphicsConfiguration gc, Image image, Copy next) {
+                this.gc = gc;
+                this.image = image;
+                this.next = next;
+            }
+        }
+
+        private static final class PinnedRegion {
+            private final int serverId;
+            private final TileRegion region;
+            /* the decoded bytes of all tiles of the region */
+            private final long bytes;
+            private PinnedRegion(int serverId, TileRegion region) {
+                this.serverId = serverId;
+                this.region = region;
+                this.bytes = (long) region.getTileCount() * TILE_SIZE * TILE_SIZE * 4;
+            }
+        }
+
+        private static final class Segment {
+            private final LongLruMap<Entry> images = new LongLruMap<Entry>(32);
+            /* decoded tiles of pinned regions, never evicted and bounded by maxPinnedBytes instead of the budget */
+            private final LongLruMap<Entry> pinned = new LongLruMap<Entry>(16);
+            private final PolicyLruMap<Entry> encoded;
+            private long[] sample = new long[1];
+            /* the weight of images included in imageBytes */
+            private long accounted;
+            /* keys looked up since the tiles shown last changed, only these count as accesses */
+            private final LongLruMap<Boolean> counted = new LongLruMap<Boolean>(32);
+            private long countedGeneration;
+            private Segment(EvictionPolicy policy, long maxEncodedBytes, AtomicLong evictions) {
+                encoded = new PolicyLruMap<Entry>(policy, maxEncodedBytes, evictions);
+            }
+        }
+
+        private final Segment[] segments = new Segment[SEGMENTS];
+        /* decoded bytes of the hot tier over all segments */
+        private final AtomicLong imageBytes = new AtomicLong();
+        /* changes whenever a panel shows other tiles */
+        private volatile long generation;
+        private volatile long maxBytes;
+        private volatile long maxEncodedBytes;
+        private volatile long maxPinnedBytes;
+        private volatile EvictionPolicy policy = EvictionPolicy.lru();
+        private volatile PrintWriter trace;
+        private final TileStatistics statistics;
+        private volatile TileService service;
+        private final CopyOnWriteArrayList<PinnedRegion> pins = new CopyOnWriteArrayList<PinnedRegion>();
+
+        TileCache(long maxBytes, long maxEncodedBytes, long maxPinnedBytes, TileStatistics statistics) {
+            this.maxBytes = maxBytes;
+            this.maxEncodedBytes = maxEncodedBytes;
+            this.maxPinnedBytes = maxPinnedBytes;
+            this.statistics = statistics;
+            for (int i = 0; i < SEGMENTS; ++i)
+                segments[i] = new Segment(policy, maxEncodedBytes / SEGMENTS, statistics.getEvictionCounter());
+            statistics.setCache(this);
+        }
+
+        public EvictionPolicy getEvictionPolicy() {
+            return policy;
+        }
+
+        public void setEvictionPolicy(EvictionPolicy policy) {
+            if (policy == null)
+                throw new IllegalArgumentException("policy must not be null");
+            this.policy = policy;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.encoded.setPolicy(policy);
+                    trim(segment);
+                }
+            }
+        }
+
+        /**
+         * Tells the eviction policy where the map is looking at. With several MapPanels sharing
+         * the cache the last one painted wins.
+         * @see EvictionPolicy#setViewport(int, double, double)
+         */
+        public void setViewport(int zoom, double centerX, double centerY) {
+            policy.setViewport(zoom, centerX, centerY);
+            PrintWriter trace = this.trace;
+            if (trace != null)
+                trace.println("v " + zoom + " " + centerX + " " + centerY);
+        }
+
+        /**
+         * Records all viewport changes and tile lookups to the given writer, in the format read
+         * by {@link CacheSimulator}. The cache closes the writer once it is replaced.
+         * @param trace the writer or <code>null</code> to stop recording
+         */
+        public void setTrace(Writer trace) {
+            PrintWriter old = this.trace;
+            this.trace = trace == null ? null : new PrintWriter(trace, false);
+            if (old != null)
+                old.close();
+        }
+
+        private Segment segmentFor(long key) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            return segments[(int) (h >>> 60) & (SEGMENTS - 1)];
+        }
+
         public void put(TileServer tileServer, int x, int y, int z, Image image) {
-            map.put(new Tile(tileServer.getURL(), x, y, z), image);
+            put(Tile.key(tileServer, x, y, z), image, null);
+        }
+
+        /**
+         * Puts a decoded tile into the hot tier.
+         * @param response the encoded bytes of the image, used to demote the tile once it is evicted,
+         *        along with its expiry and validators. <code>null</code> for a tile that never expires
+         */
+        void put(long key, Image image, TileResponse response) {
+            Entry entry = response == null ? new Entry(image, null, 0, null, null)
+                : new Entry(image, response.getData(), response.getExpires(), response.getETag(), response.getLastModified());
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                segment.encoded.remove(key);
+                putImage(segment, key, entry);
+                trim(segment);
+            }
+        }
+
+        /**
+         * Puts the encoded bytes of a tile into the warm tier, the tile is decoded once it is requested.
+         */
+        public void putEncoded(TileServer tileServer, int x, int y, int z, byte[] data) {
+            putEncoded(Tile.key(tileServer, x, y, z), data);
         }
+
+        void putEncoded(long key, byte[] data) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                if (segment.images.containsKey(key) || segment.pinned.containsKey(key))
+                    return;
+                segment.encoded.put(key, new Entry(null, data, 0, null, null), data.length);
+                trim(segment);
+            }
+        }
+
+        /**
+         * Applies a not modified answer to a cached tile, the validators and expiry of the answer win.
+         */
+        void setRevalidated(long key, TileResponse notModified) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                Entry entry = peekEntry(segment, key);
+                if (entry == null)
+                    return;
+                entry.expires = notModified.getExpires();
+                if (notModified.getETag() != null)
+                    entry.etag = notModified.getETag();
+                if (notModified.getLastModified() != null)
+                    entry.lastModified = notModified.getLastModified();
+            }
+        }
+
+        /**
+         * Gets the bytes of a cached tile along with its validators, so a tile missing from the disk
+         * store can still be revalidated. This neither promotes the tile nor counts as a lookup.
+         * @return the tile or <code>null</code> if it is not cached with its bytes
+         */
+        TileResponse getResponse(long key) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                Entry entry = peekEntry(segment, key);
+                return entry == null ? null : entry.toResponse();
+            }
+        }
+
+        /* must hold the segment's lock */
+        private static Entry peekEntry(Segment segment, long key) {
+            Entry entry = segment.pinned.peek(key);
+            if (entry == null)
+                entry = segment.images.peek(key);
+            if (entry == null)
+                entry = segment.encoded.peek(key);
+            return entry;
+        }
+
+        /**
+         * Sets the service expired tiles are revalidated by and warm tiles are decoded by.
+         */
+        void setService(TileService service) {
+            this.service = service;
+        }
+
         public Image get(TileServer tileServer, int x, int y, int z) {
-            //return map.get(new Tile(x, y, z));
-            Image image = map.get(new Tile(tileServer.getURL(), x, y, z));
+            return get(Tile.key(tileServer, x, y, z));
+        }
+
+        /**
+         * Called when a panel shows other tiles than before. Panels look up all their tiles on every
+         * repaint, a tile only counts as accessed once until the tiles shown change again, so
+         * frequencies, statistics and traces reflect how often tiles are shown, not the frame rate.
+         */
+        void nextGeneration() {
+            ++generation;
+        }
+
+        /* must hold the segment's lock. whether the lookup counts as an access */
+        private boolean countAccess(Segment segment, long key) {
+            long generation = this.generation;
+            // bounded for services without panels, whose generation never changes
+            if (segment.countedGeneration != generation || segment.counted.size() >= COUNTED_KEYS) {
+                segment.counted.clear();
+                segment.countedGeneration = generation;
+            }
+            if (segment.counted.containsKey(key))
+                return false;
+            segment.counted.put(key, Boolean.TRUE, 0);
+            return true;
+        }
+
+        /**
+         * Gets the decoded image of a tile. A tile of the warm tier is decoded in the background,
+         * <code>null</code> is returned meanwhile and the listeners of the service are notified when
+         * it is back. An expired tile is still returned, it gets revalidated in the background.
+         */
+        Image get(long key) {
+            Segment segment = segmentFor(key);
+            Image image = null;
+            boolean expired = false;
+            boolean counted;
+            TileResponse warm = null;
+            synchronized (segment) {
+                counted = countAccess(segment, key);
+                Entry entry = segment.pinned.get(key);
+                if (entry == null)
+                    entry = segment.images.get(key);
+                if (entry != null) {
+                    if (counted) {
+                        policy.recordAccess(key);
+                        statistics.hit();
+                    }
+                    image = entry.image;
+                    long now = System.currentTimeMillis();
+                    expired = entry.expires != 0 && entry.expires <= now;
+                    if (expired)
+                        entry.expires = now + REVALIDATE_RETRY_MILLIS;
+                } else {
+                    Entry encoded = counted ? segment.encoded.get(key) : segment.encoded.peek(key);
+                    if (encoded == null) {
+                        if (counted)
+                            statistics.miss();
+                    } else {
+                        if (counted)
+                            statistics.warmHit();
+                        warm = encoded.toResponse();
+                    }
+                }
+            }
+            PrintWriter trace = this.trace;
+            if (counted && trace != null)
+                trace.println("a " + Tile.serverId(key) + " " + Tile.z(key) + " " + Tile.x(key) + " " + Tile.y(key));
+            TileService service = this.service;
+            if (warm != null) {
+                // never decode while holding the segment, the warm copy stays until the decoded tile replaces it
+                if (service != null) {
+                    service.promote(key, warm);
+                    return null;
+                }
+                long t0 = System.nanoTime();
+                image = TileService.readImage(warm.getData());
+                statistics.decoded(System.nanoTime() - t0);
+                if (image != null)
+                    put(key, image, warm);
+                return image;
+            }
+            if (expired && service != null)
+                service.revalidate(key);
             return image;
         }
+
+        /**
+         * @return <code>true</code> if the tile is in one of the tiers, this does not promote the tile
+         */
+        public boolean contains(TileServer tileServer, int x, int y, int z) {
+            return contains(Tile.key(tileServer, x, y, z));
+        }
+
+        boolean contains(long key) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.images.containsKey(key) || segment.pinned.containsKey(key) || segment.encoded.containsKey(key);
+            }
+        }
+
+        /**
+         * Gets the decoded image of a tile if it is in the hot tier. Unlike {@link #get(long)} this
+         * neither decodes, touches the lru order nor counts as a lookup.
+         */
+        Image peek(long key) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                Entry entry = segment.pinned.peek(key);
+                if (entry == null)
+                    entry = segment.images.peek(key);
+                return entry == null ? null : entry.image;
+            }
+        }
+
+        /**
+         * Gets the copy of a cached tile converted for a screen other than the default one. This
+         * neither touches the lru order nor counts as a lookup.
+         * @return the copy or <code>null</code> if there is none or the tile changed meanwhile
+         */
+        Image getCopy(long key, Image image, GraphicsConfiguration gc) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                Entry entry = segment.pinned.peek(key);
+                if (entry == null)
+                    entry = segment.images.peek(key);
+                if (entry == null || entry.image != image)
+                    return null;
+                for (Copy copy = entry.copies; copy != null; copy = copy.next) {
+                    if (copy.gc.equals(gc))
+                        return copy.image;
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Keeps a copy of a cached tile converted for a screen other than the default one, it counts
+         * against the budget and is dropped along with the tile. Nothing happens if the tile changed
+         * meanwhile.
+         */
+        void putCopy(long key, Image image, GraphicsConfiguration gc, Image copy) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                LongLruMap<Entry> map = segment.pinned.containsKey(key) ? segment.pinned : segment.images;
+                Entry entry = map.peek(key);
+                if (entry == null || entry.image != image)
+                    return;
+                entry.copies = new Copy(gc, copy, entry.copies);
+                map.put(key, entry, getWeight(entry));
+                trim(segment);
+            }
+        }
+
+        /**
+         * Removes the overzoomed tiles cut from a tile, after the tile changed. These are only kept
+         * decoded, so only the hot tier is searched.
+         * @return the keys of the removed tiles
+         */
+        long[] removeOverzoomed(long key) {
+            int serverId = Tile.serverId(key);
+            int z = Tile.z(key);
+            int x = Tile.x(key);
+            int y = Tile.y(key);
+            long[] removed = new long[0];
+            int count = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    int start = count;
+                    for (int i = 0; i < 2; ++i) {
+                        LongLruMap<Entry> map = i == 0 ? segment.images : segment.pinned;
+                        for (int slot = map.eldest(); slot != -1; slot = map.newer(slot)) {
+                            long candidate = map.keyAt(slot);
+                            int levels = Tile.z(candidate) - z;
+                            if (Tile.serverId(candidate) == serverId && levels > 0
+                                && Tile.x(candidate) >> levels == x && Tile.y(candidate) >> levels == y) {
+                                if (count == removed.length)
+                                    removed = Arrays.copyOf(removed, Math.max(16, count * 2));
+                                removed[count++] = candidate;
+                            }
+                        }
+                    }
+                    for (int i = start; i < count; ++i) {
+                        Entry entry = segment.images.remove(removed[i]);
+                        if (entry == null)
+                            entry = segment.pinned.remove(removed[i]);
+                        if (entry != null)
+                            entry.flush();
+                    }
+                    account(segment);
+                }
+            }
+            return Arrays.copyOf(removed, count);
+        }
+
+        /**
+         * Pins the tiles of a region. Pinned tiles are kept decoded once they were loaded, they
+         * are never evicted and do not count against the budget of the hot tier. Tiles of the
+         * region already in the hot tier become pinned right away.
+         * @throws IllegalArgumentException if the decoded tiles of all pinned regions would exceed {@link #getMaxPinnedBytes()}
+         * @see TileService#pin(TileServer, TileRegion, long)
+         */
+        public void pin(TileServer tileServer, TileRegion region) {
+            PinnedRegion pinned = new PinnedRegion(tileServer.getId(), region);
+            synchronized (pins) {
+                long bytes = pinned.bytes;
+                for (PinnedRegion pin : pins)
+                    bytes += pin.bytes;
+                if (bytes > maxPinnedBytes)
+                    throw new IllegalArgumentException("pinned regions would exceed " + maxPinnedBytes + " bytes: " + region);
+                pins.add(pinned);
+            }
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    moveEntries(segment.images, segment.pinned, true);
+                    account(segment);
+                }
+            }
+        }
+
+        /**
+         * Releases a region pinned by {@link #pin(TileServer, TileRegion)}. Its tiles go back to
+         * the hot tier, unless they are still covered by another pinned region.
+         */
+        public void unpin(TileServer tileServer, TileRegion region) {
+            synchronized (pins) {
+                for (PinnedRegion pin : pins) {
+                    if (pin.serverId == tileServer.getId() && pin.region == region) {
+                        pins.remove(pin);
+                        break;
+                    }
+                }
+            }
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    moveEntries(segment.pinned, segment.images, false);
+                    trim(segment);
+                }
+            }
+        }
+
+        public boolean isPinned(TileServer tileServer, int x, int y, int z) {
+            return isPinned(Tile.key(tileServer, x, y, z));
+        }
+
+        boolean isPinned(long key) {
+            for (PinnedRegion pin : pins) {
+                if (pin.serverId == Tile.serverId(key) && pin.region.contains(Tile.z(key), Tile.x(key), Tile.y(key)))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the number of decoded tiles of pinned regions
+         */
+        public int getPinnedSize() {
+            int size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.pinned.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * @return the estimated number of bytes used by pinned tiles, these are not part of {@link #getBytes()}
+         */
+        public long getPinnedBytes() {
+            long bytes = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    bytes += segment.pinned.weight();
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * @return the number of decoded tiles
+         */
         public int getSize() {
-            return map.size();
+            int size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.images.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * @return the estimated number of bytes used by the decoded images in this cache
+         */
+        public long getBytes() {
+            long bytes = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    bytes += segment.images.weight();
+                }
+            }
+            return bytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * Sets the memory budget of the hot tier. If the tier currently uses more than the new
+         * budget the least recently used tiles are demoted right away.
+         * @param maxBytes the budget in bytes of decoded image data
+         */
+        public void setMaxBytes(long maxBytes) {
+            if (maxBytes < 0)
+                throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+            this.maxBytes = maxBytes;
+            trimAll();
+        }
+
+        /**
+         * @return the number of tiles held as encoded bytes
+         */
+        public int getEncodedSize() {
+            int size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.encoded.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * @return the number of bytes used by the encoded tiles in this cache
+         */
+        public long getEncodedBytes() {
+            long bytes = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    bytes += segment.encoded.weight();
+                }
+            }
+            return bytes;
+        }
+
+        public long getMaxPinnedBytes() {
+            return maxPinnedBytes;
+        }
+
+        /**
+         * Sets the memory budget of pinned regions. A region is only pinned if the decoded images of
+         * all its tiles fit in the budget together with the regions pinned already, regions pinned
+         * before the budget was lowered stay pinned.
+         * @param maxPinnedBytes the budget in bytes of decoded image data
+         */
+        public void setMaxPinnedBytes(long maxPinnedBytes) {
+            if (maxPinnedBytes < 0)
+                throw new IllegalArgumentException("maxPinnedBytes must not be negative: " + maxPinnedBytes);
+            this.maxPinnedBytes = maxPinnedBytes;
+        }
+
+        public long getMaxEncodedBytes() {
+            return maxEncodedBytes;
+        }
+
+        /**
+         * Sets the memory budget of the warm tier.
+         * @param maxEncodedBytes the budget in bytes of encoded tile data
+         */
+        public void setMaxEncodedBytes(long maxEncodedBytes) {
+            if (maxEncodedBytes < 0)
+                throw new IllegalArgumentException("maxEncodedBytes must not be negative: " + maxEncodedBytes);
+            this.maxEncodedBytes = maxEncodedBytes;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.encoded.setMaxWeight(maxEncodedBytes / SEGMENTS);
+                }
+            }
+        }
+
+        public void clear() {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    for (int slot = segment.images.eldest(); slot != -1; slot = segment.images.newer(slot))
+                        segment.images.valueAt(slot).flush();
+                    for (int slot = segment.pinned.eldest(); slot != -1; slot = segment.pinned.newer(slot))
+                        segment.pinned.valueAt(slot).flush();
+                    segment.images.clear();
+                    segment.pinned.clear();
+                    segment.encoded.clear();
+                    account(segment);
+                }
+            }
+        }
+
+        /* must hold the segment's lock */
+        private void putImage(Segment segment, long key, Entry entry) {
+            policy.recordAccess(key);
+            int weight = getWeight(entry);
+            boolean pinned = isPinned(key);
+            Entry old = (pinned ? segment.pinned : segment.images).put(key, entry, weight);
+            if (old == null)
+                old = (pinned ? segment.images : segment.pinned).remove(key);
+            if (old != null && old.image != entry.image)
+                old.flush();
+        }
+
+        /* must hold the segment's lock. moves the entries whose pinned state matches from one map to the other */
+        private void moveEntries(LongLruMap<Entry> from, LongLruMap<Entry> to, boolean pinned) {
+            long[] keys = new long[from.size()];
+            int count = 0;
+            for (int slot = from.eldest(); slot != -1; slot = from.newer(slot)) {
+                if (isPinned(from.keyAt(slot)) == pinned)
+                    keys[count++] = from.keyAt(slot);
+            }
+            for (int i = 0; i < count; ++i) {
+                Entry entry = from.peek(keys[i]);
+                int weight = getWeight(entry);
+                from.remove(keys[i]);
+                to.put(keys[i], entry, weight);
+            }
+        }
+
+        private void trimAll() {
+            // down to an even share first, so the first segments do not pay for all
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    trim(segment, maxBytes / SEGMENTS);
+                }
+            }
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    trim(segment);
+                }
+            }
+        }
+
+        /* must hold the segment's lock */
+        private void account(Segment segment) {
+            long weight = segment.images.weight();
+            imageBytes.addAndGet(weight - segment.accounted);
+            segment.accounted = weight;
+        }
+
+        /* must hold the segment's lock */
+        private void trim(Segment segment) {
+            trim(segment, 0);
+        }
+
+        /**
+         * Evicts tiles of a segment while all segments together exceed the budget. The newest tile
+         * of the segment is kept, it is usually the one just put for painting. Must hold the
+         * segment's lock.
+         * @param minBytes the weight the segment is not trimmed below
+         */
+        private void trim(Segment segment, long minBytes) {
+            account(segment);
+            while (imageBytes.get() > maxBytes && segment.images.weight() > minBytes && segment.images.size() > 1) {
+                int victim = selectVictim(segment);
+                long key = segment.images.keyAt(victim);
+                Entry entry = segment.images.valueAt(victim);
+                segment.images.removeAt(victim);
+                account(segment);
+                entry.flush();
+                statistics.getEvictionCounter().incrementAndGet();
+                if (entry.data != null)
+                    segment.encoded.put(key, new Entry(null, entry.data, entry.expires, entry.etag, entry.lastModified), entry.data.length);
+            }
+            segment.encoded.trim();
+        }
+
+        /* must hold the segment's lock */
+        private int selectVictim(Segment segment) {
+            EvictionPolicy policy = this.policy;
+            int sampleSize = Math.max(1, policy.getSampleSize());
+            if (segment.sample.length < sampleSize)
+                segment.sample = new long[sampleSize];
+            int count = 0;
+            // never the newest
+            int candidates = Math.min(sampleSize, segment.images.size() - 1);
+            for (int slot = segment.images.eldest(); slot != -1 && count < candidates; slot = segment.images.newer(slot))
+                segment.sample[count++] = segment.images.keyAt(slot);
+            int victim = count == 1 ? 0 : policy.selectVictim(segment.sample, count);
+            int slot = segment.images.eldest();
+            for (int i = 0; i < victim; ++i)
+                slot = segment.images.newer(slot);
+            return slot;
+        }
+
+        /* must hold the segment's lock */
+        private static int getWeight(Entry entry) {
+            int weight = getByteSize(entry.image) + (entry.data == null ? 0 : entry.data.length);
+            for (Copy copy = entry.copies; copy != null; copy = copy.next)
+                weight += getByteSize(copy.image);
+            return weight;
+        }
+
+        /**
+         * Estimates the size of the decoded pixels of an image. Images that are still loading
+         * report no size yet and are accounted as a full tile with 4 bytes per pixel.
+         */
+        private static int getByteSize(Image image) {
+            if (image instanceof BufferedImage) {
+                DataBuffer buffer = ((BufferedImage) image).getRaster().getDataBuffer();
+                return buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+            }
+            int width = image.getWidth(null);
+            int height = image.getHeight(null);
+            if (width <= 0 || height <= 0)
+                width = height = TILE_SIZE;
+            return width * height * 4;
         }
     }
 
-    private static class Stats {
+    public static final class Stats {
         private int tileCount;
+        private int drawnTileCount;
         private long dt;
+        private int cacheTileCount, cacheEncodedTileCount;
+        private long cacheBytes, cacheMaxBytes, cacheEncodedBytes, cacheMaxEncodedBytes;
         private Stats() {
             reset();
         }
         private void reset() {
             tileCount = 0;
+            drawnTileCount = 0;
             dt = 0;
         }
+        public int getTileCount() {
+            return tileCount;
+        }
+        /**
+         * @return the number of tiles drawn into the back buffer, the others were shown already
+         */
+        public int getDrawnTileCount() {
+            return drawnTileCount;
+        }
+        public long getDt() {
+            return dt;
+        }
+        public int getCacheTileCount() {
+            return cacheTileCount;
+        }
+        public long getCacheBytes() {
+            return cacheBytes;
+        }
+        public long getCacheMaxBytes() {
+            return cacheMaxBytes;
+        }
+        public int getCacheEncodedTileCount() {
+            return cacheEncodedTileCount;
+        }
+        public long getCacheEncodedBytes() {
+            return cacheEncodedBytes;
+        }
+        public long getCacheMaxEncodedBytes() {
+            return cacheMaxEncodedBytes;
+        }
     }
     
     public static class CustomSplitPane extends JComponent  {
@@ -1182,9 +2777,19 @@ public class MapPanel extends JPanel {
         private Point mouseCoords;
         private Point downCoords;
         private Point downPosition;
+        /* smoothed drag velocity in map pixels per millisecond */
+        private double velocityX, velocityY;
+        private long lastDragTime;
+        private final Timer dwell = new Timer(DWELL_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (downCoords == null && animation == null && zoomDelay == null)
+                    prefetchZoomLevels(new Point(mouseCoords.x, mouseCoords.y));
+            }
+        });
 
         public DragListener() {
             mouseCoords = new Point();
+            dwell.setRepeats(false);
         }
 
         public void mouseClicked(MouseEvent e) {
@@ -1215,6 +2820,9 @@ public class MapPanel extends JPanel {
             downCoords = null;
             downPosition = null;
             magnifyRegion = null;
+            velocityX = velocityY = 0;
+            lastDragTime = 0;
+            ahead = null;
         }
 
         public void mouseMoved(MouseEvent e) {
@@ -1230,17 +2838,25 @@ public class MapPanel extends JPanel {
             super.mouseEntered(me);
         }
 
+        public void mouseExited(MouseEvent e) {
+            dwell.stop();
+        }
+
         private void handlePosition(MouseEvent e) {
             mouseCoords = e.getPoint();
+            dwell.restart();
             if (overlayPanel.isVisible())
-                MapPanel.this.repaint();
+                overlayPanel.repaint();
         }
 
         private void handleDrag(MouseEvent e) {
             if (downCoords != null) {
                 int tx = downCoords.x - e.getX();
                 int ty = downCoords.y - e.getY();
+                Point position = getMapPosition();
                 setMapPosition(downPosition.x + tx, downPosition.y + ty);
+                trackVelocity(e.getWhen(), downPosition.x + tx - position.x, downPosition.y + ty - position.y);
+                prefetchAhead();
                 repaint();
             } else if (magnifyRegion != null) {
                 int cx = getCursorPosition().x;
@@ -1250,6 +2866,30 @@ public class MapPanel extends JPanel {
             }
         }
 
+        private void trackVelocity(long when, int dx, int dy) {
+            // the position wraps around at the date line, a drag across it moves by less than half the map
+            int xMax = getXMax();
+            if (xMax > 0) {
+                dx %= xMax;
+                if (dx > xMax / 2)
+                    dx -= xMax;
+                else if (dx < -xMax / 2)
+                    dx += xMax;
+            }
+            long dt = when - lastDragTime;
+            if (lastDragTime == 0 || dt > DRAG_PAUSE_MILLIS) {
+                velocityX = velocityY = 0;
+            } else if (dt > 0) {
+                velocityX = 0.5 * velocityX + 0.5 * dx / dt;
+                velocityY = 0.5 * velocityY + 0.5 * dy / dt;
+            }
+            lastDragTime = when;
+            // at most one screen ahead
+            int lx = (int) Math.max(-getWidth(), Math.min(getWidth(), velocityX * LOOKAHEAD_MILLIS));
+            int ly = (int) Math.max(-getHeight(), Math.min(getHeight(), velocityY * LOOKAHEAD_MILLIS));
+            ahead = lx == 0 && ly == 0 ? null : new Rectangle(getMapPosition().x + lx, getMapPosition().y + ly, getWidth(), getHeight());
+        }
+
         public void mouseWheelMoved(MouseWheelEvent e) {
             int rotation = e.getWheelRotation();
             if (rotation < 0)
@@ -1263,7 +2903,7 @@ public class MapPanel extends JPanel {
 
         private OverlayPanel() {
             setOpaque(false);
-            setPreferredSize(new Dimension(370, 12 * 16 + 12));
+            setPreferredSize(new Dimension(420, 18 * 16 + 12));
         }
 
         protected void paintComponent(Graphics gOrig) {
@@ -1285,12 +2925,19 @@ public class MapPanel extends JPanel {
             drawString(g, 3, "CursorPosition", (mapPosition.x + getCursorPosition().x) + ", " + (mapPosition.y + getCursorPosition().y));
             drawString(g, 4, "CenterPosition", (mapPosition.x + getWidth() / 2) + ", " + (mapPosition.y + getHeight() / 2));
             drawString(g, 5, "Tilescount", getXTileCount() + ", " + getYTileCount() + " (" + (NumberFormat.getIntegerInstance().format((long)getXTileCount() * getYTileCount())) + " total)");
-            drawString(g, 6, "Painted-Tilescount", Integer.toString(stats.tileCount));
+            drawString(g, 6, "Painted-Tilescount", stats.tileCount + " (" + stats.drawnTileCount + " drawn)");
             drawString(g, 7, "Paint-Time", stats.dt + " ms.");
             drawString(g, 8, "Active Tile", getTile(getCursorPosition()).x + ", " + getTile(getCursorPosition()).y);
             drawString(g, 9, "Tile Box Lon/Lat", format(tile2lon(getTile(getCursorPosition()).x, getZoom())) + ", " + format(tile2lat(getTile(getCursorPosition()).y, getZoom())));
             drawString(g, 10, "Cursor Lon/Lat", format(position2lon(getCursorPosition().x, getZoom())) + ", " + format(position2lat(getCursorPosition().y, getZoom())));
-            drawString(g, 11, "Tilecache", String.format("%3d / %3d", cache.getSize(), CACHE_SIZE));
+            drawString(g, 11, "Tilecache", String.format("%3d tiles, %s / %s", stats.getCacheTileCount(), formatBytes(stats.getCacheBytes()), formatBytes(stats.getCacheMaxBytes())));
+            drawString(g, 12, "Tilecache (png)", String.format("%3d tiles, %s / %s", stats.getCacheEncodedTileCount(), formatBytes(stats.getCacheEncodedBytes()), formatBytes(stats.getCacheMaxEncodedBytes())));
+            TileStatistics statistics = tileService.getStatistics();
+            drawString(g, 13, "Cache Hits", String.format("%d + %d png / %d misses (%.1f%%)", statistics.getHitCount(), statistics.getWarmHitCount(), statistics.getMissCount(), 100 * statistics.getHitRate()));
+            drawString(g, 14, "Evictions", Long.toString(statistics.getEvictionCount()));
+            drawString(g, 15, "Loaded", String.format("%d tiles, %s, %d from disk, %d failed", statistics.getTilesLoaded(), formatBytes(statistics.getBytesLoaded()), statistics.getDiskReads(), statistics.getLoadFailures()));
+            drawString(g, 16, "Decode", String.format("%d tiles, %.2f ms avg.", statistics.getDecodeCount(), statistics.getAverageDecodeMillis()));
+            drawString(g, 17, "Fetches", String.format("%d in flight, %d queued", statistics.getInFlight(), statistics.getQueued()));
         }
 
         private void drawString(Graphics2D g, int row, String key, String value) {
@@ -1588,7 +3235,7 @@ public class MapPanel extends JPanel {
                         String s = e.getDescription();
                         int index = Integer.valueOf(s);
                         SearchResult result = results.get(index);
-                        MapPanel.this.setZoom(result.getZoom() < 1 || result.getZoom() > getTileServer().getMaxZoom() ? 8 : result.getZoom());
+                        MapPanel.this.setZoom(result.getZoom() < 1 || result.getZoom() > getMaxZoom() ? 8 : result.getZoom());
                         Point position = MapPanel.this.computePosition(new Point2D.Double(result.getLon(), result.getLat()));
                         MapPanel.this.setCenterPosition(position);
                         MapPanel.this.repaint();
@@ -1615,8 +3262,7 @@ public class MapPanel extends JPanel {
             searchBox.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
             editorPane.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-            Thread t = new Thread(r, "searcher "+ newSearch);
-            t.start();
+            VirtualThreads.start("searcher " + newSearch, r);
         }
 
         private void doSearchInternal(final String newSearch) {
@@ -1865,25 +3511,18 @@ public class MapPanel extends JPanel {
                 menuBar.add(viewMenu);
             }
             {
-                JMenu tileServerMenu = new JMenu("Tileservers");
+                final JMenu tileServerMenu = new JMenu("Tileservers");
                 tileServerMenu.setMnemonic(KeyEvent.VK_T);
-                ButtonGroup bg = new ButtonGroup();
-                int index = 0;
-                for (final TileServer curr : TILESERVERS) {
-                    JCheckBoxMenuItem item = new JCheckBoxMenuItem(curr.getURL());
-                    bg.add(item);
-                    item.setSelected(curr.equals(mapPanel.getTileServer()));
-                    item.addActionListener(new ActionListener() {
-                        public void actionPerformed(ActionEvent e) {
-                            mapPanel.setTileServer(curr);
-                            mapPanel.repaint();
-                        }
-                    });
-                    if (index < 9)
-                        item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_1 + index, InputEvent.CTRL_DOWN_MASK));
-                    tileServerMenu.add(item);
-                    ++index;
-                }
+                populateTileServerMenu(tileServerMenu);
+                tileServerMenu.addMenuListener(new MenuListener() {
+                    public void menuSelected(MenuEvent e) {
+                        populateTileServerMenu(tileServerMenu);
+                    }
+                    public void menuDeselected(MenuEvent e) {
+                    }
+                    public void menuCanceled(MenuEvent e) {
+                    }
+                });
                 menuBar.add(tileServerMenu);
             }
             {
@@ -1903,6 +3542,113 @@ public class MapPanel extends JPanel {
             return menuBar;
         }
 
+        private void populateTileServerMenu(JMenu tileServerMenu) {
+            tileServerMenu.removeAll();
+            ButtonGroup bg = new ButtonGroup();
+            int index = 0;
+            for (final TileServer curr : getTileServers()) {
+                JCheckBoxMenuItem item = new JCheckBoxMenuItem(curr.getURL());
+                bg.add(item);
+                item.setSelected(curr.equals(mapPanel.getTileServer()));
+                item.addActionListener(new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        mapPanel.setTileServer(curr);
+                        mapPanel.repaint();
+                    }
+                });
+                if (index < 9)
+                    item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_1 + index, InputEvent.CTRL_DOWN_MASK));
+                tileServerMenu.add(item);
+                ++index;
+            }
+            tileServerMenu.addSeparator();
+            tileServerMenu.add(new AbstractAction() {
+                {
+                    putValue(Action.NAME, "Open Tile Directory...");
+                    putValue(Action.MNEMONIC_KEY, KeyEvent.VK_D);
+                }
+                public void actionPerformed(ActionEvent e) {
+                    openTileSource(0);
+                }
+            });
+            tileServerMenu.add(new AbstractAction() {
+                {
+                    putValue(Action.NAME, "Open Tile Archive (ZIP)...");
+                    putValue(Action.MNEMONIC_KEY, KeyEvent.VK_Z);
+                }
+                public void actionPerformed(ActionEvent e) {
+                    openTileSource(1);
+                }
+            });
+            tileServerMenu.add(new AbstractAction() {
+                {
+                    putValue(Action.NAME, "Open MBTiles File...");
+                    putValue(Action.MNEMONIC_KEY, KeyEvent.VK_M);
+                }
+                public void actionPerformed(ActionEvent e) {
+                    openTileSource(2);
+                }
+            });
+        }
+
+        /**
+         * Lets the user pick local tiles and switches the map to them.
+         * @param kind 0 for a directory tree, 1 for a zip archive, 2 for an MBTiles file
+         */
+        private void openTileSource(int kind) {
+            JFileChooser chooser = new JFileChooser();
+            if (kind == 0)
+                chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            else if (kind == 1)
+                chooser.setFileFilter(new FileNameExtensionFilter("ZIP archives", "zip"));
+            else
+                chooser.setFileFilter(new FileNameExtensionFilter("MBTiles files", "mbtiles"));
+            if (chooser.showOpenDialog(mapPanel) != JFileChooser.APPROVE_OPTION)
+                return;
+            File file = chooser.getSelectedFile();
+            String url = file.toURI().toString();
+            // opening the same tiles again switches to their tileserver, there are only 256 tileserver ids
+            for (TileServer tileServer : getTileServers()) {
+                if (tileServer.getURL().equals(url)) {
+                    mapPanel.setTileServer(tileServer);
+                    mapPanel.repaint();
+                    return;
+                }
+            }
+            TileSource source = null;
+            try {
+                if (kind == 0)
+                    source = new DirectoryTileSource(file);
+                else if (kind == 1)
+                    source = new ZipTileSource(file);
+                else
+                    source = new MBTilesTileSource(file);
+                TileServer tileServer = TileServer.create(url, source);
+                // the tileserver owns the source from now on
+                source = null;
+                addTileServer(tileServer);
+                mapPanel.setTileServer(tileServer);
+                mapPanel.repaint();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "failed to open tiles in \"" + file + "\"", e);
+                JOptionPane.showMessageDialog(mapPanel, e.getMessage(), "Cannot open tiles.", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalStateException e) {
+                log.log(Level.WARNING, "failed to add tiles in \"" + file + "\"", e);
+                JOptionPane.showMessageDialog(mapPanel, e.getMessage(), "Cannot open tiles.", JOptionPane.ERROR_MESSAGE);
+            } finally {
+                if (source instanceof Closeable)
+                    closeQuietly((Closeable) source);
+            }
+        }
+
+        private void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "failed to close " + closeable, e);
+            }
+        }
+
         private boolean isWebstart() {
             return System.getProperty("javawebstart.version") != null && System.getProperty("javawebstart.version").length() > 0;
         }
@@ -1938,7 +3684,15 @@ public class MapPanel extends JPanel {
         frame.setVisible(true);
     }
 
+    /**
+     * Shows the map, <code>seed</code> followed by the arguments of {@link TileSeeder#main(String[])}
+     * downloads a region into the disk store instead.
+     */
     public static void main(String[] args) {
+        if (args.length > 0 && "seed".equals(args[0])) {
+            TileSeeder.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 try {
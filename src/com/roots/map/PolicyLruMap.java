@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * PolicyLruMap is a weight-bounded map whose evictions are decided by an {@link EvictionPolicy}.
+ * It consists of an lru admission window, sized by {@link EvictionPolicy#getWindowFraction()}, and
+ * the main area. New entries enter the window, entries falling out of the window enter the main area
+ * if there is room or if the policy admits them in place of the victim it selected.
+ *
+ * <p>The map is not synchronized.</p>
+ *
+ * @version $Revision$
+ */
+final class PolicyLruMap<V> {
+
+    private final LongLruMap<V> window = new LongLruMap<V>(16);
+    private final LongLruMap<V> main = new LongLruMap<V>(32);
+    private EvictionPolicy policy;
+    private long maxWeight;
+    private long[] sample = new long[1];
+    private final AtomicLong evictions;
+
+    /**
+     * @param evictions counts dropped entries, may be <code>null</code>
+     */
+    PolicyLruMap(EvictionPolicy policy, long maxWeight, AtomicLong evictions) {
+        this.policy = policy;
+        this.maxWeight = maxWeight;
+        this.evictions = evictions;
+    }
+
+    void setPolicy(EvictionPolicy policy) {
+        this.policy = policy;
+        trim();
+    }
+
+    void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        trim();
+    }
+
+    int size() {
+        return window.size() + main.size();
+    }
+
+    long weight() {
+        return window.weight() + main.weight();
+    }
+
+    boolean containsKey(long key) {
+        return window.containsKey(key) || main.containsKey(key);
+    }
+
+    V get(long key) {
+        policy.recordAccess(key);
+        V value = window.get(key);
+        return value != null ? value : main.get(key);
+    }
+
+    /**
+     * Gets a value without counting it as an access.
+     */
+    V peek(long key) {
+        V value = window.peek(key);
+        return value != null ? value : main.peek(key);
+    }
+
+    V remove(long key) {
+        V value = window.remove(key);
+        return value != null ? value : main.remove(key);
+    }
+
+    void put(long key, V value, int weight) {
+        policy.recordAccess(key);
+        if (main.containsKey(key)) {
+            main.put(key, value, weight);
+        } else {
+            window.put(key, value, weight);
+        }
+        trim();
+    }
+
+    void clear() {
+        window.clear();
+        main.clear();
+    }
+
+    void trim() {
+        long maxWindowWeight = (long) (maxWeight * policy.getWindowFraction());
+        while (window.weight() > maxWindowWeight && window.size() > 0) {
+            int slot = window.eldest();
+            long candidate = window.keyAt(slot);
+            V value = window.valueAt(slot);
+            int weight = window.weightAt(slot);
+            window.removeAt(slot);
+            if (!makeRoom(candidate, weight)) {
+                evicted();
+                continue;
+            }
+            main.put(candidate, value, weight);
+        }
+        while (weight() > maxWeight && main.size() > 0) {
+            main.removeAt(selectVictim());
+            evicted();
+        }
+        while (weight() > maxWeight && window.size() > 0) {
+            window.removeAt(window.eldest());
+            evicted();
+        }
+    }
+
+    /**
+     * Evicts from the main area until the candidate fits, unless the policy prefers a victim.
+     * @return <code>false</code> if the candidate was rejected
+     */
+    private boolean makeRoom(long candidate, int weight) {
+        while (main.size() > 0 && weight() + weight > maxWeight) {
+            int victim = selectVictim();
+            if (!policy.admit(candidate, main.keyAt(victim)))
+                return false;
+            main.removeAt(victim);
+            evicted();
+        }
+        return true;
+    }
+
+    private void evicted() {
+        if (evictions != null)
+            evictions.incrementAndGet();
+    }
+
+    private int selectVictim() {
+        int sampleSize = Math.max(1, policy.getSampleSize());
+        if (sample.length < sampleSize)
+            sample = new long[sampleSize];
+        int count = 0;
+        for (int slot = main.eldest(); slot != -1 && count < sampleSize; slot = main.newer(slot))
+            sample[count++] = main.keyAt(slot);
+        int victim = count == 1 ? 0 : policy.selectVictim(sample, count);
+        int slot = main.eldest();
+        for (int i = 0; i < victim; ++i)
+            slot = main.newer(slot);
+        return slot;
+    }
+}
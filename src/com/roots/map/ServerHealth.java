@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * ServerHealth guards the requests to one tileserver. It is a circuit breaker: after a number of
+ * failures in a row no more requests are sent for a while, the pause doubles with every failed
+ * attempt to recover. Once the pause is over a single probe request decides whether requests
+ * resume. It also limits the request rate with a token bucket and optionally the number of
+ * concurrent requests with a semaphore.
+ *
+ * <p>Failures are logged once per streak instead of once per tile.</p>
+ *
+ * @version $Revision$
+ */
+final class ServerHealth {
+
+    private static final Logger log = Logger.getLogger(ServerHealth.class.getName());
+
+    /* constants ... */
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    /* tiles failing while requests are sent are retried after this */
+    private static final long TILE_RETRY_MILLIS = 30 * 1000;
+    private static final long PROBE_WAIT_MILLIS = 1000;
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final double permitsPerSecond;
+    private double permits;
+    private long refillNanos = System.nanoTime();
+    /* null for no limit */
+    private final Semaphore connections;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long backoff;
+    private long openUntil;
+
+    /**
+     * @param permitsPerSecond the request rate, also the burst size, 0 for no limit
+     * @param maxConnections the number of concurrent requests, 0 for no limit
+     */
+    ServerHealth(String name, double permitsPerSecond, int maxConnections) {
+        this.name = name;
+        this.permitsPerSecond = permitsPerSecond;
+        this.permits = permitsPerSecond;
+        this.connections = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
+    }
+
+    /**
+     * @return <code>true</code> if a request may be sent, it has to be followed by
+     *         {@link #succeeded()} or {@link #failed(String, IOException)}
+     */
+    synchronized boolean tryRequest(long now) {
+        switch (state) {
+        case OPEN:
+            if (now < openUntil)
+                return false;
+            // this request is the probe
+            state = State.HALF_OPEN;
+            return true;
+        case HALF_OPEN:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Waits until the rate limit allows another request.
+     */
+    void awaitPermit() throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            if (permitsPerSecond <= 0)
+                return;
+            long now = System.nanoTime();
+            permits = Math.min(permitsPerSecond, permits + (now - refillNanos) * permitsPerSecond / 1e9);
+            refillNanos = now;
+            // take the permit in advance, later requests wait for the debt to be paid off
+            permits -= 1;
+            if (permits >= 0)
+                return;
+            waitNanos = (long) (-permits / permitsPerSecond * 1e9);
+        }
+        try {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + name);
+        }
+    }
+
+    /**
+     * Waits until fewer than the allowed number of requests are running, has to be followed by
+     * {@link #releaseConnection()}.
+     */
+    void acquireConnection() throws InterruptedIOException {
+        if (connections == null)
+            return;
+        try {
+            connections.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + name);
+        }
+    }
+
+    void releaseConnection() {
+        if (connections != null)
+            connections.release();
+    }
+
+    /**
+     * @return <code>true</code> if requests were paused until now
+     */
+    synchronized boolean succeeded() {
+        boolean paused = state != State.CLOSED;
+        if (paused || failures >= FAILURE_THRESHOLD)
+            log.log(Level.INFO, "tileserver " + name + " is back after " + failures + " failed requests");
+        state = State.CLOSED;
+        failures = 0;
+        backoff = 0;
+        return paused;
+    }
+
+    /**
+     * @return <code>true</code> if requests are paused from now on
+     */
+    synchronized boolean failed(String url, IOException e) {
+        ++failures;
+        if (state == State.HALF_OPEN || failures == FAILURE_THRESHOLD) {
+            backoff = backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            openUntil = System.currentTimeMillis() + backoff;
+            state = State.OPEN;
+            log.log(Level.WARNING, "tileserver " + name + " failed " + failures + " requests in a row, last \"" + url + "\" with "
+                + e + ", pausing requests for " + backoff / 1000d + " s");
+            return true;
+        }
+        if (failures == 1)
+            log.log(Level.WARNING, "failed to load url \"" + url + "\"", e);
+        return false;
+    }
+
+    /**
+     * Pauses requests right away, the server did not answer a probe. The first request after the
+     * backoff probes the server again.
+     * @return <code>true</code> if requests are paused from now on, <code>false</code> if they
+     *         already were
+     */
+    synchronized boolean unreachable(String url) {
+        if (state != State.CLOSED)
+            return false;
+        failures = Math.max(failures, FAILURE_THRESHOLD);
+        backoff = backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        openUntil = System.currentTimeMillis() + backoff;
+        state = State.OPEN;
+        log.log(Level.WARNING, "tileserver " + name + " did not answer the probe \"" + url + "\", pausing requests for "
+            + backoff / 1000d + " s");
+        return true;
+    }
+
+    /**
+     * @return the time in millis a tile that failed to load may be requested again
+     */
+    synchronized long getRetryTime(long now) {
+        switch (state) {
+        case OPEN:
+            return openUntil;
+        case HALF_OPEN:
+            return now + PROBE_WAIT_MILLIS;
+        default:
+            return now + TILE_RETRY_MILLIS;
+        }
+    }
+
+    synchronized boolean isAvailable() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized String toString() {
+        return "ServerHealth [" + name + ", " + state + ", failures=" + failures + ", backoff=" + backoff + "]";
+    }
+}
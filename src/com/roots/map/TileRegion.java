@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+
+
+/**
+ * TileRegion is a bounding box in longitude/latitude together with a range of zoom levels. It
+ * describes all tiles covering the box at each of the zoom levels.
+ *
+ * @version $Revision$
+ */
+public final class TileRegion {
+
+    private final double minLon, minLat, maxLon, maxLat;
+    private final int minZoom, maxZoom;
+
+    public TileRegion(double minLon, double minLat, double maxLon, double maxLat, int minZoom, int maxZoom) {
+        if (minLon > maxLon || minLat > maxLat)
+            throw new IllegalArgumentException("empty bounding box " + minLon + ", " + minLat + " - " + maxLon + ", " + maxLat);
+        if (minZoom < 0 || minZoom > maxZoom || maxZoom > MapPanel.Tile.MAX_ZOOM)
+            throw new IllegalArgumentException("bad zoom range " + minZoom + " - " + maxZoom);
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.maxLon = maxLon;
+        this.maxLat = maxLat;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    public double getMinLon() {
+        return minLon;
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMaxLon() {
+        return maxLon;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public int getMinX(int zoom) {
+        return clamp(MapPanel.lon2position(minLon, zoom) / MapPanel.TILE_SIZE, zoom);
+    }
+
+    public int getMaxX(int zoom) {
+        return clamp(MapPanel.lon2position(maxLon, zoom) / MapPanel.TILE_SIZE, zoom);
+    }
+
+    /* latitude grows northwards, tile rows southwards */
+    public int getMinY(int zoom) {
+        return clamp(MapPanel.lat2position(maxLat, zoom) / MapPanel.TILE_SIZE, zoom);
+    }
+
+    public int getMaxY(int zoom) {
+        return clamp(MapPanel.lat2position(minLat, zoom) / MapPanel.TILE_SIZE, zoom);
+    }
+
+    private static int clamp(int tile, int zoom) {
+        return Math.max(0, Math.min((1 << zoom) - 1, tile));
+    }
+
+    public boolean contains(int zoom, int x, int y) {
+        return zoom >= minZoom && zoom <= maxZoom
+            && x >= getMinX(zoom) && x <= getMaxX(zoom)
+            && y >= getMinY(zoom) && y <= getMaxY(zoom);
+    }
+
+    /**
+     * @return the number of tiles in the region summed over all zoom levels
+     */
+    public long getTileCount() {
+        long count = 0;
+        for (int zoom = minZoom; zoom <= maxZoom; ++zoom)
+            count += (long) (getMaxX(zoom) - getMinX(zoom) + 1) * (getMaxY(zoom) - getMinY(zoom) + 1);
+        return count;
+    }
+
+    public String toString() {
+        return "TileRegion [" + minLon + ", " + minLat + " - " + maxLon + ", " + maxLat + ", zoom " + minZoom + " - " + maxZoom + "]";
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+
+
+/**
+ * TileResponse holds the encoded bytes of a tile together with the http validators it was delivered
+ * with and the time it expires, as kept in the {@link DiskTileStore}. The answer to a conditional
+ * request for a tile that did not change carries no bytes, see {@link #isNotModified()}.
+ *
+ * @version $Revision$
+ */
+public final class TileResponse {
+
+    private final byte[] data;
+    private final String etag;
+    private final String lastModified;
+    private final long expires;
+
+    /**
+     * @param etag the <code>ETag</code> header or <code>null</code>
+     * @param lastModified the <code>Last-Modified</code> header or <code>null</code>
+     * @param expires the time in millis the tile expires at, 0 if it is unknown
+     */
+    public TileResponse(byte[] data, String etag, String lastModified, long expires) {
+        if (data == null)
+            throw new IllegalArgumentException("data must not be null");
+        this.data = data;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    private TileResponse(String etag, String lastModified, long expires) {
+        this.data = null;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * Creates the answer to a conditional request for a tile that did not change.
+     */
+    public static TileResponse notModified(String etag, String lastModified, long expires) {
+        return new TileResponse(etag, lastModified, expires);
+    }
+
+    /**
+     * @return the bytes or <code>null</code> if the tile was not modified
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public boolean isNotModified() {
+        return data == null;
+    }
+
+    /**
+     * Applies a not modified answer to this tile, the validators and expiry of the answer win.
+     */
+    public TileResponse revalidated(TileResponse notModified) {
+        return new TileResponse(data,
+            notModified.etag != null ? notModified.etag : etag,
+            notModified.lastModified != null ? notModified.lastModified : lastModified,
+            notModified.expires);
+    }
+
+    public String toString() {
+        return "TileResponse [" + (data == null ? "not modified" : data.length + " bytes") + ", etag=" + etag
+            + ", lastModified=" + lastModified + ", expires=" + expires + "]";
+    }
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.awt.geom.Path2D;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.roots.map.MapPanel.Tile;
+import com.roots.map.MapPanel.TileServer;
+
+
+/**
+ * TileSeeder downloads all tiles of a region into the {@link DiskTileStore} of a {@link TileService},
+ * so the map can be used offline there. The region is a {@link TileRegion}, optionally narrowed down
+ * to the tiles touching a polygon.
+ *
+ * <p>Tiles are fetched by a few threads in parallel, by default 2, and are subject to the rate
+ * limit and backoff the service applies to every tileserver. Tiles already stored are skipped,
+ * stored tiles that expired are revalidated, so an interrupted run picks up where it stopped.
+ * The disk store should be large enough for the region, otherwise seeded tiles get evicted again.</p>
+ *
+ * <p>From the command line: <code>TileSeeder url minZoom maxZoom minLon,minLat,maxLon,maxLat [threads]</code>
+ * or with a polygon <code>lon,lat,lon,lat,lon,lat,...</code> instead of the box. The disk store is
+ * the one configured by <code>mappanel.diskcache.dir</code>.</p>
+ *
+ * @version $Revision$
+ */
+public final class TileSeeder implements Runnable {
+
+    private static final Logger log = Logger.getLogger(TileSeeder.class.getName());
+
+    /* constants ... */
+    private static final int DEFAULT_THREADS = 2;
+    /* how long to wait before asking a failing tileserver again */
+    private static final long PAUSE_MILLIS = 1000;
+    private static final long REPORT_MILLIS = 5000;
+
+    private final TileService service;
+    private final TileServer tileServer;
+    private final TileRegion region;
+    private double[] polygon;
+    private int threads = DEFAULT_THREADS;
+
+    /* the next tile to seed, guarded by this */
+    private int zoom, x, y;
+    private Path2D.Double shape;
+    private volatile boolean cancelled;
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @throws IllegalArgumentException if the tileserver reads local tiles
+     */
+    public TileSeeder(TileService service, TileServer tileServer, TileRegion region) {
+        if (tileServer.getSource().isLocal())
+            throw new IllegalArgumentException("tileserver " + tileServer + " is local");
+        this.service = service;
+        this.tileServer = tileServer;
+        this.region = region;
+    }
+
+    /**
+     * Creates a seeder for the tiles touching a polygon.
+     * @param polygon the corners as longitude, latitude pairs
+     */
+    public TileSeeder(TileService service, TileServer tileServer, double[] polygon, int minZoom, int maxZoom) {
+        this(service, tileServer, bounds(polygon, minZoom, maxZoom));
+        this.polygon = polygon.clone();
+    }
+
+    private static TileRegion bounds(double[] polygon, int minZoom, int maxZoom) {
+        if (polygon.length < 6 || polygon.length % 2 != 0)
+            throw new IllegalArgumentException("a polygon needs at least three longitude, latitude pairs: " + polygon.length + " values");
+        double minLon = Double.POSITIVE_INFINITY, minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < polygon.length; i += 2) {
+            minLon = Math.min(minLon, polygon[i]);
+            maxLon = Math.max(maxLon, polygon[i]);
+            minLat = Math.min(minLat, polygon[i + 1]);
+            maxLat = Math.max(maxLat, polygon[i + 1]);
+        }
+        return new TileRegion(minLon, minLat, maxLon, maxLat, minZoom, maxZoom);
+    }
+
+    public TileRegion getRegion() {
+        return region;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * @return the number of tiles in the bounding box of the region, tiles outside of the polygon included
+     */
+    public long getTileCount() {
+        return region.getTileCount();
+    }
+
+    /**
+     * @return the number of tiles fetched from the tileserver
+     */
+    public long getLoadedCount() {
+        return loaded.get();
+    }
+
+    /**
+     * @return the number of tiles that were stored already or are outside of the polygon
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of tiles the tileserver does not have or failed to deliver
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Makes {@link #run()} return after the tiles being fetched.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Seeds the region and returns once all tiles are done or the seeder was cancelled.
+     * @throws IllegalStateException if the service has no disk store
+     */
+    public void run() {
+        if (service.getTileStore() == null)
+            throw new IllegalStateException("no disk store configured");
+        synchronized (this) {
+            zoom = region.getMinZoom();
+            x = region.getMinX(zoom);
+            y = region.getMinY(zoom);
+            shape = null;
+        }
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = VirtualThreads.start("tileseeder " + (i + 1), new Runnable() {
+                public void run() {
+                    long key;
+                    while (!cancelled && (key = next()) != -1)
+                        seed(Tile.x(key), Tile.y(key), Tile.z(key));
+                }
+            });
+        }
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the key of the next tile or -1 when done, tiles outside of the polygon are skipped
+     */
+    private synchronized long next() {
+        while (zoom <= region.getMaxZoom()) {
+            if (y > region.getMaxY(zoom)) {
+                y = region.getMinY(zoom);
+                if (++x > region.getMaxX(zoom)) {
+                    if (++zoom > region.getMaxZoom())
+                        return -1;
+                    x = region.getMinX(zoom);
+                    y = region.getMinY(zoom);
+                    shape = null;
+                }
+            }
+            int tileY = y++;
+            if (polygon == null || getShape().intersects(x * MapPanel.TILE_SIZE, tileY * MapPanel.TILE_SIZE, MapPanel.TILE_SIZE, MapPanel.TILE_SIZE))
+                return Tile.key(tileServer, x, tileY, zoom);
+            skipped.incrementAndGet();
+        }
+        return -1;
+    }
+
+    /* the polygon in map coordinates of the current zoom level */
+    private Path2D.Double getShape() {
+        if (shape == null) {
+            shape = new Path2D.Double();
+            shape.moveTo(MapPanel.lon2position(polygon[0], zoom), MapPanel.lat2position(polygon[1], zoom));
+            for (int i = 2; i < polygon.length; i += 2)
+                shape.lineTo(MapPanel.lon2position(polygon[i], zoom), MapPanel.lat2position(polygon[i + 1], zoom));
+            shape.closePath();
+        }
+        return shape;
+    }
+
+    private void seed(int x, int y, int zoom) {
+        TileResponse stored = service.getTileStore().getTile(tileServer.getURL(), zoom, x, y);
+        if (stored != null && (stored.getExpires() == 0 || stored.getExpires() > System.currentTimeMillis())) {
+            skipped.incrementAndGet();
+            return;
+        }
+        while (!cancelled) {
+            if (service.fetch(tileServer, x, y, zoom, stored != null) != null) {
+                loaded.incrementAndGet();
+                return;
+            }
+            if (service.isAvailable(tileServer)) {
+                failed.incrementAndGet();
+                return;
+            }
+            // the tileserver keeps failing, wait for it instead of failing the rest of the region
+            try {
+                Thread.sleep(PAUSE_MILLIS);
+            } catch (InterruptedException e) {
+                cancelled = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String toString() {
+        return "TileSeeder [" + tileServer + ", " + region + ", loaded=" + getLoadedCount() + ", skipped=" + getSkippedCount()
+            + ", failed=" + getFailedCount() + " of " + getTileCount() + "]";
+    }
+
+    //-------------------------------------------------------------------------
+    // command line
+
+    public static void main(String[] args) {
+        if (args.length < 4 || args.length > 5) {
+            System.err.println("usage: TileSeeder url minZoom maxZoom minLon,minLat,maxLon,maxLat|lon,lat,lon,lat,lon,lat,... [threads]");
+            System.exit(1);
+        }
+        TileService service = TileService.getDefault();
+        if (service.getTileStore() == null) {
+            System.err.println("set mappanel.diskcache.dir to the directory of the disk store");
+            System.exit(1);
+        }
+        String[] values = args[3].split(",");
+        double[] coordinates = new double[values.length];
+        for (int i = 0; i < values.length; ++i)
+            coordinates[i] = Double.parseDouble(values[i].trim());
+        int minZoom = Integer.parseInt(args[1]);
+        int maxZoom = Integer.parseInt(args[2]);
+        TileServer tileServer = getTileServer(args[0], maxZoom);
+        final TileSeeder seeder = coordinates.length == 4
+            ? new TileSeeder(service, tileServer, new TileRegion(coordinates[0], coordinates[1], coordinates[2], coordinates[3], minZoom, maxZoom))
+            : new TileSeeder(service, tileServer, coordinates, minZoom, maxZoom);
+        if (args.length > 4)
+            seeder.setThreads(Integer.parseInt(args[4]));
+        System.out.println("seeding " + seeder.getTileCount() + " tiles of " + seeder.getRegion() + " into " + service.getTileStore().getDirectory());
+        Thread thread = new Thread(seeder, "tileseeder");
+        thread.start();
+        try {
+            while (thread.isAlive()) {
+                thread.join(REPORT_MILLIS);
+                System.out.println(seeder);
+            }
+        } catch (InterruptedException e) {
+            seeder.cancel();
+        }
+        service.getTileStore().close();
+        log.log(Level.INFO, "seeding done " + seeder);
+    }
+
+    private static TileServer getTileServer(String url, int maxZoom) {
+        for (TileServer tileServer : MapPanel.getTileServers()) {
+            if (tileServer.getURL().equals(url))
+                return tileServer;
+        }
+        return TileServer.create(url, maxZoom);
+    }
+}
@@ -0,0 +1,1100 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.awt.Image;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.management.ObjectName;
+
+import com.roots.map.MapPanel.Tile;
+import com.roots.map.MapPanel.TileCache;
+import com.roots.map.MapPanel.TileServer;
+
+
+/**
+ * TileService loads and caches tiles for all {@link MapPanel}s of the jvm, so panels showing
+ * overlapping regions share memory and fetches. Every tile is requested at most once at a time,
+ * concurrent requests for the same tile get the same {@link Future}.
+ *
+ * <p>Tiles are read from the {@link TileCache}, then from the {@link DiskTileStore} if one is configured,
+ * then from the {@link TileSource} of the tileserver. Panels get notified about loaded tiles via
+ * {@link TileListener}s. Non-ui code can use {@link #requestTile(TileServer, int, int, int)} directly.</p>
+ *
+ * <p>Queued tiles are fetched center-out. Panels report what they show via
+ * {@link #setViewport(Object, TileServer, int, Rectangle)}, tiles close to the center of a viewport are
+ * fetched first, tiles of other zoom levels after all tiles of the viewport's zoom. A viewport may
+ * have a region ahead of it, where a dragged map is predicted to move to, its tiles are fetched after
+ * the visible ones. Queued tiles that left all viewports are dropped.</p>
+ *
+ * <p>Tiles of {@link ConditionalTileSource}s expire as told by the tileserver. Expired tiles are still
+ * shown, when they are looked up they are revalidated in the background, an unchanged tile is not
+ * transferred again.</p>
+ *
+ * <p>Requests to each tileserver are guarded by a circuit breaker, while a tileserver keeps failing
+ * requests pause with growing backoff, and by a rate limit of <code>mappanel.http.requestspersecond</code>
+ * (default 20). Tiles that failed to load are requested again once their tileserver may be asked again.</p>
+ *
+ * <p>If <code>mappanel.loader.virtualthreads</code> is <code>true</code> and the jvm supports it, every
+ * request runs on a virtual thread of its own. Blocked fetches cost next to nothing then, a semaphore
+ * per tileserver limits the concurrent requests to <code>mappanel.http.serverconnections</code>
+ * (default 16). The fetch threads still take the queued tiles in order and start their virtual
+ * thread once a connection is free, so tiles keep being fetched center-out.</p>
+ *
+ * <p>Tiles of zoom levels beyond the highest one of their tileserver are never requested from the
+ * tileserver, they are cut from the tile of the highest level and scaled up, see
+ * {@link MapPanel#setOverzoomLevels(int)}.</p>
+ *
+ * <p>Regions that are shown over again can be pinned with {@link #pin(TileServer, TileRegion, long)}.
+ * Their tiles stay in memory and on disk and are refreshed from the tileserver in the background.</p>
+ *
+ * @version $Revision$
+ */
+public final class TileService {
+
+    private static final Logger log = Logger.getLogger(TileService.class.getName());
+
+    /* constants ... */
+    private static final long DEFAULT_CACHE_BYTES = Long.getLong("mappanel.tilecache.bytes", 256L * MapPanel.TILE_SIZE * MapPanel.TILE_SIZE * 4);
+    private static final long DEFAULT_ENCODED_CACHE_BYTES = Long.getLong("mappanel.tilecache.encodedbytes", 64L * 1024 * 1024);
+    private static final long DEFAULT_PINNED_BYTES = Long.getLong("mappanel.tilecache.pinnedbytes", 512L * MapPanel.TILE_SIZE * MapPanel.TILE_SIZE * 4);
+    private static final long DEFAULT_DISKCACHE_BYTES = Long.getLong("mappanel.diskcache.bytes", 512L * 1024 * 1024);
+    /* with virtual threads these only start the virtual thread of each request */
+    private static final int FETCH_THREADS = Integer.getInteger("mappanel.loader.fetchthreads", 4);
+    private static final int DECODE_THREADS = Integer.getInteger("mappanel.loader.decodethreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final double REQUESTS_PER_SECOND = Double.parseDouble(System.getProperty("mappanel.http.requestspersecond", "20"));
+    /* with platform threads the number of fetch threads limits the connections */
+    private static final int SERVER_CONNECTIONS = VirtualThreads.isEnabled() ? Integer.getInteger("mappanel.http.serverconnections", 16) : 0;
+    /* tiles around the visible ones that are still worth loading */
+    private static final int VIEWPORT_MARGIN = 1;
+    /* priorities, lower ones are fetched first. within a viewport the priority is the squared distance to its center in tiles */
+    private static final double PRIORITY_REQUESTED = 0;
+    private static final double PRIORITY_AHEAD = 1e5;
+    private static final double PRIORITY_OTHER_ZOOM = 1e6;
+    private static final double PRIORITY_BACKGROUND = 1e9;
+    private static final String MBEAN_NAME = "com.roots.map:type=TileService";
+
+    private static TileService defaultService;
+
+    /**
+     * Gets notified when a tile was loaded into the cache.
+     */
+    public interface TileListener {
+        void tileLoaded(TileServer tileServer, int x, int y, int zoom);
+
+        /**
+         * Gets notified when requests to a tileserver may be sent again, the tiles that failed to
+         * load meanwhile should be requested again.
+         */
+        void tilesAvailable(TileServer tileServer);
+    }
+
+    /**
+     * A region pinned by {@link TileService#pin(TileServer, TileRegion, long)}.
+     */
+    public static final class Pin {
+        private final TileServer tileServer;
+        private final TileRegion region;
+        private final TileCache cache;
+        private final DiskTileStore tileStore;
+        private volatile ScheduledFuture<?> refresh;
+        private volatile boolean released;
+        private Pin(TileServer tileServer, TileRegion region, TileCache cache, DiskTileStore tileStore) {
+            this.tileServer = tileServer;
+            this.region = region;
+            this.cache = cache;
+            this.tileStore = tileStore;
+        }
+
+        public TileServer getTileServer() {
+            return tileServer;
+        }
+
+        public TileRegion getRegion() {
+            return region;
+        }
+
+        /**
+         * Stops refreshing the region and lets its tiles be evicted again.
+         */
+        public void unpin() {
+            if (released)
+                return;
+            released = true;
+            if (refresh != null)
+                refresh.cancel(false);
+            cache.unpin(tileServer, region);
+            if (tileStore != null)
+                tileStore.removePinnedRegion(tileServer.getURL(), region);
+        }
+    }
+
+    private final TileStatistics statistics = new TileStatistics();
+    private final TileCache cache = new TileCache(DEFAULT_CACHE_BYTES, DEFAULT_ENCODED_CACHE_BYTES, DEFAULT_PINNED_BYTES, statistics);
+    private volatile DiskTileStore tileStore;
+    /* only ever holds TileLoads */
+    private final PriorityBlockingQueue<Runnable> fetchQueue = new PriorityBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor fetcher = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 0L, TimeUnit.MILLISECONDS, fetchQueue,
+        new ThreadFactory() {
+            private int count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tilefetcher " + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    private final ExecutorService decoder = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+        private int count;
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tiledecoder " + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    /* refreshes pinned regions, which takes minutes for large regions at the request rate limit */
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tilerefresh");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    /* tells the panels when failing tileservers may be asked again, never held up by refreshes */
+    private final ScheduledExecutorService retrier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tileretry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    /* tiles being loaded. tiles that failed to load stay here until their retry time, so they are not requested again on every repaint */
+    private final LongLruMap<TileLoad> pending = new LongLruMap<TileLoad>(64);
+    /* server id -> health, guarded by itself */
+    private final ServerHealth[] health = new ServerHealth[256];
+    /* owner -> what it shows, guarded by pending */
+    private final HashMap<Object, Viewport> viewports = new HashMap<Object, Viewport>();
+    private long sequence;
+    /* tile key and configuration of the copies being converted */
+    private final Set<List<Object>> converting = ConcurrentHashMap.newKeySet();
+    private final CopyOnWriteArrayList<TileListener> listeners = new CopyOnWriteArrayList<TileListener>();
+
+    private TileService(DiskTileStore tileStore) {
+        this.tileStore = tileStore;
+        cache.setService(this);
+        // loads are put back into the queue directly when they are reprioritized
+        fetcher.prestartAllCoreThreads();
+    }
+
+    /**
+     * Gets the service shared by all MapPanels. Its disk store is configured by the system properties
+     * <code>mappanel.diskcache.dir</code> and <code>mappanel.diskcache.bytes</code>, the memory budgets
+     * of its cache by <code>mappanel.tilecache.bytes</code> and <code>mappanel.tilecache.encodedbytes</code>,
+     * the memory pinned regions may use by <code>mappanel.tilecache.pinnedbytes</code>.
+     * <code>mappanel.tilecache.policy</code> selects the eviction policy, <code>lru</code> (default),
+     * <code>tinylfu</code> or <code>viewport</code>. If <code>mappanel.trace.file</code> is set, tile lookups are recorded to that file for the {@link CacheSimulator}.
+     * The number of threads fetching and decoding tiles are set by <code>mappanel.loader.fetchthreads</code>
+     * (default 4) and <code>mappanel.loader.decodethreads</code> (default half the number of processors). With virtual threads
+     * the fetch threads only start a virtual thread per request, <code>mappanel.http.serverconnections</code> of them per tileserver.
+     */
+    public static synchronized TileService getDefault() {
+        if (defaultService == null) {
+            DiskTileStore tileStore = null;
+            String dir = System.getProperty("mappanel.diskcache.dir");
+            if (dir != null && dir.length() > 0) {
+                try {
+                    tileStore = new DiskTileStore(new File(dir), DEFAULT_DISKCACHE_BYTES);
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "failed to open tile store in \"" + dir + "\"", e);
+                }
+            }
+            defaultService = new TileService(tileStore);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(defaultService.statistics, new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                log.log(Level.WARNING, "failed to register " + MBEAN_NAME, e);
+            }
+            String policy = System.getProperty("mappanel.tilecache.policy");
+            if ("tinylfu".equals(policy))
+                defaultService.cache.setEvictionPolicy(EvictionPolicy.tinyLfu(8192));
+            else if ("viewport".equals(policy))
+                defaultService.cache.setEvictionPolicy(EvictionPolicy.viewport());
+            String traceFile = System.getProperty("mappanel.trace.file");
+            if (traceFile != null && traceFile.length() > 0) {
+                try {
+                    defaultService.cache.setTrace(new BufferedWriter(new FileWriter(traceFile)));
+                    Runtime.getRuntime().addShutdownHook(new Thread("tiletrace close") {
+                        public void run() {
+                            defaultService.cache.setTrace(null);
+                        }
+                    });
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "failed to open trace file \"" + traceFile + "\"", e);
+                }
+            }
+        }
+        return defaultService;
+    }
+
+    public TileCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the counters of the service, also available via jmx as <code>com.roots.map:type=TileService</code>
+     */
+    public TileStatistics getStatistics() {
+        return statistics;
+    }
+
+    public DiskTileStore getTileStore() {
+        return tileStore;
+    }
+
+    /**
+     * Sets the disk store tiles are read from and written to.
+     * @param tileStore the store or <code>null</code> to always fetch from the tileserver
+     */
+    public void setTileStore(DiskTileStore tileStore) {
+        this.tileStore = tileStore;
+    }
+
+    public void addTileListener(TileListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeTileListener(TileListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets a tile from the memory cache without loading it.
+     * @return the image or <code>null</code> if the tile is not cached
+     */
+    public Image getTile(TileServer tileServer, int x, int y, int zoom) {
+        return cache.get(Tile.key(tileServer, x, y, zoom));
+    }
+
+    /**
+     * Requests a tile asynchronously. If the tile is cached the returned future is already done.
+     * @return a future delivering the image, or <code>null</code> if the tile could not be loaded
+     */
+    public Future<Image> requestTile(TileServer tileServer, int x, int y, int zoom) {
+        long key = Tile.key(tileServer, x, y, zoom);
+        Image image = cache.get(key);
+        if (image != null) {
+            FutureTask<Image> done = new FutureTask<Image>(new Runnable() {
+                public void run() {
+                }
+            }, image);
+            done.run();
+            return done;
+        }
+        return load(tileServer, x, y, zoom, key, PRIORITY_REQUESTED, false);
+    }
+
+    /**
+     * Makes sure a tile gets loaded into the cache, without allocating if it is already on its way.
+     */
+    void loadTile(TileServer tileServer, int x, int y, int zoom) {
+        long key = Tile.key(tileServer, x, y, zoom);
+        synchronized (pending) {
+            TileLoad load = pending.get(key);
+            if (load != null && load.retryAt > System.currentTimeMillis())
+                return;
+            load(tileServer, x, y, zoom, key, priority(key), true);
+        }
+    }
+
+    /**
+     * Sets the region shown by a panel. Queued tiles are reordered by their distance to the
+     * centers of all viewports, queued tiles outside of all viewports are dropped.
+     * @param owner the panel, identifies the viewport
+     * @param view the visible rectangle in map pixels at the given zoom
+     */
+    public void setViewport(Object owner, TileServer tileServer, int zoom, Rectangle view) {
+        setViewport(owner, tileServer, zoom, view, null);
+    }
+
+    /**
+     * Sets the region shown by a panel and the region it is predicted to show next.
+     * @param ahead the predicted rectangle in map pixels or <code>null</code>
+     * @see #setViewport(Object, TileServer, int, Rectangle)
+     */
+    public void setViewport(Object owner, TileServer tileServer, int zoom, Rectangle view, Rectangle ahead) {
+        Viewport viewport = new Viewport(tileServer.getId(), zoom, view, ahead);
+        synchronized (pending) {
+            Viewport old = viewports.put(owner, viewport);
+            if (old == null || !old.sameTiles(viewport)) {
+                reprioritize();
+                cache.nextGeneration();
+            }
+        }
+    }
+
+    public void removeViewport(Object owner) {
+        synchronized (pending) {
+            if (viewports.remove(owner) != null)
+                reprioritize();
+        }
+    }
+
+    /* must hold the pending lock */
+    private double priority(long key) {
+        double priority = Double.POSITIVE_INFINITY;
+        for (Viewport viewport : viewports.values())
+            priority = Math.min(priority, viewport.priority(key));
+        return priority;
+    }
+
+    /* must hold the pending lock */
+    private void reprioritize() {
+        ArrayList<Runnable> queued = new ArrayList<Runnable>(fetchQueue.size());
+        fetchQueue.drainTo(queued);
+        for (Runnable r : queued) {
+            TileLoad load = (TileLoad) r;
+            if (load.cancellable) {
+                load.priority = priority(load.key);
+                if (load.priority == Double.POSITIVE_INFINITY) {
+                    pending.remove(load.key);
+                    load.future.cancel(false);
+                    statistics.cancelled();
+                    continue;
+                }
+            }
+            fetchQueue.add(load);
+        }
+    }
+
+    /**
+     * Pins a region, its tiles are loaded right away and are neither evicted from memory nor
+     * from the disk store afterwards. Every <code>refreshIntervalMillis</code> all tiles of the
+     * region are fetched again from the tileserver in the background.
+     * @param refreshIntervalMillis the interval between refreshes or 0 to never refresh
+     * @return the handle to release the region again
+     * @throws IllegalArgumentException if the decoded tiles of all pinned regions would exceed the
+     * budget of {@link TileCache#setMaxPinnedBytes(long)}
+     */
+    public Pin pin(final TileServer tileServer, TileRegion region, long refreshIntervalMillis) {
+        if (refreshIntervalMillis < 0)
+            throw new IllegalArgumentException("refreshIntervalMillis must not be negative: " + refreshIntervalMillis);
+        DiskTileStore tileStore = tileServer.getSource().isLocal() ? null : this.tileStore;
+        final Pin pin = new Pin(tileServer, region, cache, tileStore);
+        cache.pin(tileServer, region);
+        if (tileStore != null)
+            tileStore.addPinnedRegion(tileServer.getURL(), region);
+        for (int zoom = region.getMinZoom(); zoom <= region.getMaxZoom(); ++zoom) {
+            for (int x = region.getMinX(zoom); x <= region.getMaxX(zoom); ++x) {
+                for (int y = region.getMinY(zoom); y <= region.getMaxY(zoom); ++y) {
+                    // promotes tiles of the warm tier, so they are decoded before they are shown
+                    if (cache.get(Tile.key(tileServer, x, y, zoom)) == null)
+                        load(tileServer, x, y, zoom, Tile.key(tileServer, x, y, zoom), PRIORITY_BACKGROUND, false);
+                }
+            }
+        }
+        if (refreshIntervalMillis > 0) {
+            pin.refresh = refresher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    refresh(pin);
+                }
+            }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return pin;
+    }
+
+    /**
+     * Revalidates all tiles of a pinned region with the tileserver, bypassing the disk store.
+     */
+    private void refresh(Pin pin) {
+        TileServer tileServer = pin.tileServer;
+        TileRegion region = pin.region;
+        for (int zoom = region.getMinZoom(); zoom <= region.getMaxZoom(); ++zoom) {
+            for (int x = region.getMinX(zoom); x <= region.getMaxX(zoom); ++x) {
+                for (int y = region.getMinY(zoom); y <= region.getMaxY(zoom); ++y) {
+                    if (pin.released)
+                        return;
+                    long key = Tile.key(tileServer, x, y, zoom);
+                    TileResponse response = fetch(tileServer, x, y, zoom, true);
+                    if (response == null)
+                        continue;
+                    if (response.isNotModified()) {
+                        cache.setRevalidated(key, response);
+                        continue;
+                    }
+                    Image image = decode(response.getData());
+                    if (image == null)
+                        continue;
+                    cache.put(key, image, response);
+                    fireTileLoaded(tileServer, x, y, zoom);
+                    dropOverzoomed(tileServer, key);
+                }
+            }
+        }
+    }
+
+    /* the overzoomed tiles cut from a tile that changed are cut again once the panels repaint them */
+    private void dropOverzoomed(TileServer tileServer, long key) {
+        if (Tile.z(key) != tileServer.getMaxZoom())
+            return;
+        for (long removed : cache.removeOverzoomed(key))
+            fireTileLoaded(tileServer, Tile.x(removed), Tile.y(removed), Tile.z(removed));
+    }
+
+    /**
+     * Loading a tile takes two steps. The bytes are fetched by one of the fetch threads, then the
+     * future is run by one of the decode threads, so slow servers do not hold up decoding and
+     * decoding does not hold up the network. An overzoomed tile is not fetched, it waits for the
+     * load of the tile it is cut from.
+     */
+    private final class TileLoad implements Callable<Image>, Runnable, Comparable<TileLoad> {
+        private final TileServer tileServer;
+        private final int x, y, zoom;
+        private final long key;
+        private final FutureTask<Image> future = new FutureTask<Image>(this) {
+            protected void done() {
+                releaseWaiting();
+            }
+        };
+        private final long sequence;
+        /* asks the tileserver whether the stored copy changed, the cache keeps the stale tile meanwhile */
+        private final boolean revalidate;
+        /* only changed while the load is not in the queue */
+        private double priority;
+        private boolean cancellable;
+        private volatile TileResponse response;
+        /* the tile an overzoomed tile is cut from */
+        private volatile Image source;
+        /* overzoomed loads to cut once this tile is loaded, guarded by pending */
+        private ArrayList<TileLoad> waiting;
+        /* the time in millis a failed load may be repeated */
+        private volatile long retryAt = Long.MAX_VALUE;
+
+        private TileLoad(TileServer tileServer, int x, int y, int zoom, long key, double priority, boolean cancellable, long sequence, boolean revalidate) {
+            this.tileServer = tileServer;
+            this.x = x;
+            this.y = y;
+            this.zoom = zoom;
+            this.key = key;
+            this.priority = priority;
+            this.cancellable = cancellable;
+            this.sequence = sequence;
+            this.revalidate = revalidate;
+        }
+
+        public int compareTo(TileLoad other) {
+            int c = Double.compare(priority, other.priority);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+
+        /* fetch step, the fetch threads take the loads in priority order */
+        public void run() {
+            if (zoom > tileServer.getMaxZoom()) {
+                if (!cancel(true)) {
+                    statistics.started();
+                    loadSource();
+                }
+                return;
+            }
+            final ServerHealth health = getHealth(tileServer);
+            try {
+                health.acquireConnection();
+            } catch (InterruptedIOException e) {
+                cancel(false);
+                return;
+            }
+            // the viewports may have moved on while the load waited for a connection
+            if (cancel(true)) {
+                health.releaseConnection();
+                return;
+            }
+            statistics.started();
+            if (!VirtualThreads.isEnabled()) {
+                fetchTile(health);
+                return;
+            }
+            try {
+                VirtualThreads.start("tilefetcher " + zoom + "/" + x + "/" + y, new Runnable() {
+                    public void run() {
+                        fetchTile(health);
+                    }
+                });
+            } catch (RuntimeException e) {
+                health.releaseConnection();
+                log.log(Level.SEVERE, "failed to start the fetch of tile " + zoom + "/" + x + "/" + y, e);
+                future.run();
+            }
+        }
+
+        /* holds a connection of the tileserver, which is released here */
+        private void fetchTile(ServerHealth health) {
+            try {
+                response = fetchConnected(tileServer, x, y, zoom, revalidate);
+            } finally {
+                health.releaseConnection();
+                if (response == null || response.isNotModified())
+                    future.run();
+                else
+                    decoder.execute(future);
+            }
+        }
+
+        /**
+         * Loads the tile of the highest zoom level an overzoomed tile is cut from like any other tile,
+         * so its siblings share the load. This load waits for it without holding a thread.
+         */
+        private void loadSource() {
+            int levels = zoom - tileServer.getMaxZoom();
+            long sourceKey = Tile.key(tileServer, x >> levels, y >> levels, tileServer.getMaxZoom());
+            source = cache.peek(sourceKey);
+            if (source == null) {
+                synchronized (pending) {
+                    TileLoad load = enqueue(tileServer, x >> levels, y >> levels, tileServer.getMaxZoom(), sourceKey, priority, cancellable);
+                    if (!load.future.isDone()) {
+                        if (load.waiting == null)
+                            load.waiting = new ArrayList<TileLoad>();
+                        load.waiting.add(this);
+                        return;
+                    }
+                }
+            }
+            decoder.execute(future);
+        }
+
+        /* hands the loaded tile to the overzoomed loads waiting for it */
+        private void releaseWaiting() {
+            ArrayList<TileLoad> waiting;
+            synchronized (pending) {
+                waiting = this.waiting;
+                this.waiting = null;
+            }
+            if (waiting == null)
+                return;
+            Image image = null;
+            if (!future.isCancelled()) {
+                try {
+                    image = future.get();
+                } catch (Exception e) {
+                    // the waiting loads fail as well
+                }
+            }
+            for (TileLoad load : waiting) {
+                if (future.isCancelled()) {
+                    // it left the viewports, so did the tiles cut from it
+                    load.removePending();
+                    load.future.cancel(false);
+                    statistics.finished();
+                } else {
+                    load.source = image;
+                    decoder.execute(load.future);
+                }
+            }
+        }
+
+        /**
+         * Cancels a load that was queued but never started.
+         * @param obsoleteOnly <code>true</code> to only cancel a cancellable load that left all viewports
+         */
+        private boolean cancel(boolean obsoleteOnly) {
+            synchronized (pending) {
+                if (obsoleteOnly && (!cancellable || priority(key) != Double.POSITIVE_INFINITY))
+                    return false;
+                if (pending.get(key) == this)
+                    pending.remove(key);
+            }
+            future.cancel(false);
+            statistics.cancelled();
+            return true;
+        }
+
+        /* decode step */
+        public Image call() {
+            try {
+                if (zoom > tileServer.getMaxZoom())
+                    return overzoom();
+                TileResponse response = this.response;
+                if (response != null && response.isNotModified()) {
+                    cache.setRevalidated(key, response);
+                    removePending();
+                    return null;
+                }
+                Image image = response == null ? null : decode(response.getData());
+                if (image == null) {
+                    statistics.failed();
+                    // a stale tile stays cached and is revalidated again later
+                    if (revalidate)
+                        removePending();
+                    retryAt = getHealth(tileServer).getRetryTime(System.currentTimeMillis());
+                    return null;
+                }
+                cache.put(key, image, response);
+                removePending();
+                fireTileLoaded(tileServer, x, y, zoom);
+                if (revalidate)
+                    dropOverzoomed(tileServer, key);
+                return image;
+            } finally {
+                statistics.finished();
+            }
+        }
+
+        /* cuts the tile from the tile of the highest zoom level */
+        private Image overzoom() {
+            int levels = zoom - tileServer.getMaxZoom();
+            Image source = this.source;
+            if (source == null)
+                source = cache.peek(Tile.key(tileServer, x >> levels, y >> levels, tileServer.getMaxZoom()));
+            if (source == null) {
+                statistics.failed();
+                retryAt = getHealth(tileServer).getRetryTime(System.currentTimeMillis());
+                return null;
+            }
+            Image image = scale(source, x, y, levels);
+            // never expires, it is dropped once the tile it is cut from changes
+            cache.put(key, image, null);
+            removePending();
+            fireTileLoaded(tileServer, x, y, zoom);
+            return image;
+        }
+
+        private void removePending() {
+            synchronized (pending) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    private Future<Image> load(TileServer tileServer, int x, int y, int zoom, long key, double priority, boolean cancellable) {
+        return enqueue(tileServer, x, y, zoom, key, priority, cancellable).future;
+    }
+
+    private TileLoad enqueue(TileServer tileServer, int x, int y, int zoom, long key, double priority, boolean cancellable) {
+        TileLoad load;
+        synchronized (pending) {
+            load = pending.get(key);
+            if (load != null && load.retryAt <= System.currentTimeMillis()) {
+                pending.remove(key);
+                load = null;
+            }
+            if (load != null) {
+                // an explicit request must not get lost by cancelling the load, a started one is still checked
+                if (priority < load.priority || load.cancellable && !cancellable) {
+                    boolean queued = fetchQueue.remove(load);
+                    load.priority = Math.min(priority, load.priority);
+                    load.cancellable &= cancellable;
+                    if (queued)
+                        fetchQueue.add(load);
+                }
+                return load;
+            }
+            load = new TileLoad(tileServer, x, y, zoom, key, priority, cancellable, ++sequence, false);
+            pending.put(key, load, 0);
+            statistics.queued();
+        }
+        fetcher.execute(load);
+        return load;
+    }
+
+    /**
+     * Asks the tileserver in the background whether an expired tile changed. The cache keeps
+     * serving the stale tile meanwhile.
+     */
+    void revalidate(long key) {
+        TileServer tileServer = TileServer.forId(Tile.serverId(key));
+        if (tileServer == null)
+            return;
+        TileLoad load;
+        synchronized (pending) {
+            if (pending.containsKey(key))
+                return;
+            load = new TileLoad(tileServer, Tile.x(key), Tile.y(key), Tile.z(key), key, PRIORITY_BACKGROUND, false, ++sequence, true);
+            pending.put(key, load, 0);
+            statistics.queued();
+        }
+        fetcher.execute(load);
+    }
+
+    /**
+     * Decodes a tile of the warm tier on the decode threads, the fetch step is skipped. Listeners
+     * are notified when the tile is back in the cache.
+     */
+    void promote(long key, TileResponse response) {
+        TileServer tileServer = TileServer.forId(Tile.serverId(key));
+        if (tileServer == null)
+            return;
+        TileLoad load;
+        synchronized (pending) {
+            load = pending.get(key);
+            // a running load delivers the tile anyway
+            if (load != null && !load.future.isDone())
+                return;
+            load = new TileLoad(tileServer, Tile.x(key), Tile.y(key), Tile.z(key), key, PRIORITY_REQUESTED, false, ++sequence, false);
+            load.response = response;
+            pending.put(key, load, 0);
+            statistics.queued();
+            statistics.started();
+        }
+        decoder.execute(load.future);
+    }
+
+    /**
+     * Gets a tile from the disk store or the tileserver, what the tileserver delivers is kept in the store.
+     * @param revalidate <code>true</code> to skip the disk store and ask the tileserver whether the stored
+     *        or cached copy changed
+     * @return the tile, a not modified answer or <code>null</code> if the tile could not be loaded
+     */
+    TileResponse fetch(TileServer tileServer, int x, int y, int zoom, boolean revalidate) {
+        ServerHealth health = getHealth(tileServer);
+        try {
+            health.acquireConnection();
+        } catch (InterruptedIOException e) {
+            return null;
+        }
+        try {
+            return fetchConnected(tileServer, x, y, zoom, revalidate);
+        } finally {
+            health.releaseConnection();
+        }
+    }
+
+    /* the caller holds a connection of the tileserver */
+    private TileResponse fetchConnected(TileServer tileServer, int x, int y, int zoom, boolean revalidate) {
+        // the tileserver does not have these
+        if (zoom > tileServer.getMaxZoom())
+            return null;
+        TileSource source = tileServer.getSource();
+        boolean conditional = source instanceof ConditionalTileSource;
+        DiskTileStore tileStore = source.isLocal() ? null : this.tileStore;
+        TileResponse stored = tileStore == null ? null : tileStore.getTile(tileServer.getURL(), zoom, x, y);
+        if (stored != null && !revalidate) {
+            statistics.loaded(stored.getData().length, true);
+            // stored without an expiry, so it gets revalidated once it is shown
+            if (conditional && stored.getExpires() == 0)
+                return new TileResponse(stored.getData(), stored.getETag(), stored.getLastModified(), 1);
+            return stored;
+        }
+        // without a stored copy the validators of the cached tile are sent
+        TileResponse validators = stored != null || !revalidate || !conditional ? stored
+            : cache.getResponse(Tile.key(tileServer, x, y, zoom));
+        String url = MapPanel.getTileString(tileServer, x, y, zoom);
+        ServerHealth health = getHealth(tileServer);
+        if (!health.tryRequest(System.currentTimeMillis())) {
+            statistics.rejected();
+            return null;
+        }
+        TileResponse response;
+        try {
+            health.awaitPermit();
+            if (conditional) {
+                response = ((ConditionalTileSource) source).loadTile(zoom, x, y,
+                    validators == null ? null : validators.getETag(), validators == null ? null : validators.getLastModified());
+            } else {
+                byte[] data = source.loadTile(zoom, x, y);
+                response = data == null ? null : new TileResponse(data, null, null, 0);
+            }
+        } catch (IOException e) {
+            if (health.failed(url, e))
+                scheduleRetry(tileServer, health);
+            return null;
+        } catch (RuntimeException e) {
+            health.failed(url, new IOException(e));
+            throw e;
+        }
+        if (health.succeeded())
+            fireTilesAvailable(tileServer);
+        if (response == null || response.isNotModified() && validators == null)
+            return null;
+        if (!response.isNotModified())
+            statistics.loaded(response.getData().length, false);
+        if (tileStore != null) {
+            try {
+                tileStore.put(tileServer.getURL(), zoom, x, y, response.isNotModified() ? validators.revalidated(response) : response);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "failed to store tile \"" + url + "\"", e);
+            }
+        }
+        return response;
+    }
+
+    private ServerHealth getHealth(TileServer tileServer) {
+        synchronized (health) {
+            ServerHealth serverHealth = health[tileServer.getId()];
+            if (serverHealth == null) {
+                boolean local = tileServer.getSource().isLocal();
+                serverHealth = new ServerHealth(tileServer.getURL(), local ? 0 : REQUESTS_PER_SECOND, local ? 0 : SERVER_CONNECTIONS);
+                health[tileServer.getId()] = serverHealth;
+            }
+            return serverHealth;
+        }
+    }
+
+    /**
+     * @return <code>false</code> while requests to the tileserver are paused because it keeps failing
+     */
+    public boolean isAvailable(TileServer tileServer) {
+        return getHealth(tileServer).isAvailable();
+    }
+
+    /**
+     * Pauses requests to a tileserver that did not answer its probe, like a server that keeps
+     * failing. The panels are notified once requests may be sent again.
+     */
+    void reportUnreachable(TileServer tileServer, String url) {
+        ServerHealth health = getHealth(tileServer);
+        if (health.unreachable(url))
+            scheduleRetry(tileServer, health);
+    }
+
+    /**
+     * Makes the panels repaint once requests to a failing tileserver may be sent again, so they
+     * request their missing tiles and one of them probes the server.
+     */
+    private void scheduleRetry(final TileServer tileServer, ServerHealth health) {
+        long now = System.currentTimeMillis();
+        retrier.schedule(new Runnable() {
+            public void run() {
+                fireTilesAvailable(tileServer);
+            }
+        }, health.getRetryTime(now) - now, TimeUnit.MILLISECONDS);
+    }
+
+    private BufferedImage decode(byte[] data) {
+        long t0 = System.nanoTime();
+        BufferedImage image = readImage(data);
+        statistics.decoded(System.nanoTime() - t0);
+        return image;
+    }
+
+    /**
+     * @return the configuration of the default screen, tiles are decoded for it, <code>null</code>
+     *         if there is no screen
+     */
+    private static GraphicsConfiguration getDefaultConfiguration() {
+        if (GraphicsEnvironment.isHeadless())
+            return null;
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    /**
+     * Converts a cached tile for a screen other than the default one on the decode threads. The
+     * cache keeps the copy along with the tile, the listeners are notified once it is there.
+     */
+    void convert(final long key, final Image image, final GraphicsConfiguration gc) {
+        final List<Object> conversion = Arrays.<Object>asList(Long.valueOf(key), gc);
+        if (!converting.add(conversion))
+            return;
+        decoder.execute(new Runnable() {
+            public void run() {
+                try {
+                    cache.putCopy(key, image, gc, toCompatibleImage((BufferedImage) image, gc));
+                } finally {
+                    converting.remove(conversion);
+                }
+                TileServer tileServer = TileServer.forId(Tile.serverId(key));
+                if (tileServer != null)
+                    fireTileLoaded(tileServer, Tile.x(key), Tile.y(key), Tile.z(key));
+            }
+        });
+    }
+
+    /**
+     * Decodes the bytes of a tile right away, unlike {@link java.awt.Toolkit#createImage(byte[])}
+     * which defers decoding until the image is drawn. The image is converted to the format of the
+     * default screen, panels on other screens get a converted copy, see
+     * {@link #convert(long, Image, GraphicsConfiguration)}.
+     * @return the image or <code>null</code> if the bytes are no supported image
+     */
+    static BufferedImage readImage(byte[] data) {
+        try {
+            // a memory cache, ImageIO would buffer plain streams in temp files otherwise
+            BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+            if (image == null) {
+                log.log(Level.WARNING, "unsupported image format in tile of " + data.length + " bytes");
+                return null;
+            }
+            return toCompatibleImage(image, getDefaultConfiguration());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to decode tile of " + data.length + " bytes", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if drawing the tile on the screen needs no conversion, or the tile
+     *         can not be converted
+     */
+    static boolean isCompatible(Image image, GraphicsConfiguration gc) {
+        if (gc == null || !(image instanceof BufferedImage))
+            return true;
+        BufferedImage bufferedImage = (BufferedImage) image;
+        return bufferedImage.getColorModel().equals(gc.getColorModel(bufferedImage.getTransparency()));
+    }
+
+    /**
+     * Converts the image once, so drawing it needs no conversion and it can be kept in video memory.
+     * Palette pngs for example would be converted on every draw otherwise.
+     */
+    private static BufferedImage toCompatibleImage(BufferedImage image, GraphicsConfiguration gc) {
+        if (isCompatible(image, gc))
+            return image;
+        BufferedImage compatible = gc.createCompatibleImage(image.getWidth(), image.getHeight(), image.getTransparency());
+        Graphics2D g = compatible.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        compatible.setAccelerationPriority(1f);
+        return compatible;
+    }
+
+    /**
+     * Scales up the part of a tile covering one of its descendants.
+     * @param levels the number of zoom levels the descendant is below the tile
+     */
+    private static BufferedImage scale(Image tile, int x, int y, int levels) {
+        int size = MapPanel.TILE_SIZE >> levels;
+        int sx = (x & ((1 << levels) - 1)) * size;
+        int sy = (y & ((1 << levels) - 1)) * size;
+        GraphicsConfiguration gc = getDefaultConfiguration();
+        BufferedImage image = gc == null ? new BufferedImage(MapPanel.TILE_SIZE, MapPanel.TILE_SIZE, BufferedImage.TYPE_INT_ARGB)
+            : gc.createCompatibleImage(MapPanel.TILE_SIZE, MapPanel.TILE_SIZE, Transparency.TRANSLUCENT);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(tile, 0, 0, MapPanel.TILE_SIZE, MapPanel.TILE_SIZE, sx, sy, sx + size, sy + size, null);
+        } finally {
+            g.dispose();
+        }
+        image.setAccelerationPriority(1f);
+        return image;
+    }
+
+    /**
+     * The tiles shown by one panel.
+     */
+    private static final class Viewport {
+        private final int serverId;
+        private final int zoom;
+        /* center, visible tiles plus margin and tiles ahead, in tiles of the viewport's zoom */
+        private final double centerX, centerY;
+        private final int[] visible, ahead;
+
+        private Viewport(int serverId, int zoom, Rectangle view, Rectangle ahead) {
+            this.serverId = serverId;
+            this.zoom = zoom;
+            this.centerX = view.getCenterX() / MapPanel.TILE_SIZE;
+            this.centerY = view.getCenterY() / MapPanel.TILE_SIZE;
+            this.visible = tiles(view, VIEWPORT_MARGIN);
+            this.ahead = ahead == null ? null : tiles(ahead, 0);
+        }
+
+        /* min x, min y, max x, max y */
+        private static int[] tiles(Rectangle r, int margin) {
+            return new int[] {
+                (int) Math.floor((double) r.x / MapPanel.TILE_SIZE) - margin,
+                (int) Math.floor((double) r.y / MapPanel.TILE_SIZE) - margin,
+                (int) Math.floor((double) (r.x + r.width) / MapPanel.TILE_SIZE) + margin,
+                (int) Math.floor((double) (r.y + r.height) / MapPanel.TILE_SIZE) + margin };
+        }
+
+        private static boolean intersects(int[] tiles, double x0, double y0, double scale) {
+            return tiles != null && x0 + scale > tiles[0] && x0 < tiles[2] + 1 && y0 + scale > tiles[1] && y0 < tiles[3] + 1;
+        }
+
+        private boolean sameTiles(Viewport other) {
+            return serverId == other.serverId && zoom == other.zoom
+                && Arrays.equals(visible, other.visible) && Arrays.equals(ahead, other.ahead);
+        }
+
+        /**
+         * Tiles of other zoom levels are projected onto the viewport's zoom.
+         * @return the priority or infinity if the tile is not in the viewport
+         */
+        private double priority(long key) {
+            if (Tile.serverId(key) != serverId)
+                return Double.POSITIVE_INFINITY;
+            int z = Tile.z(key);
+            double scale = z <= zoom ? (double) (1 << (zoom - z)) : 1d / (1 << (z - zoom));
+            double x0 = Tile.x(key) * scale;
+            double y0 = Tile.y(key) * scale;
+            // the map wraps past +/- 180 longitude, the viewport may show any copy of the tile
+            double width = 1 << zoom;
+            int minX = ahead == null ? visible[0] : Math.min(visible[0], ahead[0]);
+            int maxX = ahead == null ? visible[2] : Math.max(visible[2], ahead[2]);
+            double priority = Double.POSITIVE_INFINITY;
+            for (double x = x0 + Math.floor((minX - x0) / width) * width; x < maxX + 1; x += width)
+                priority = Math.min(priority, priority(x, y0, scale, z));
+            return priority;
+        }
+
+        /* x0 and y0 in tiles of the viewport's zoom */
+        private double priority(double x0, double y0, double scale, int z) {
+            double priority;
+            if (intersects(visible, x0, y0, scale))
+                priority = 0;
+            else if (intersects(ahead, x0, y0, scale))
+                priority = PRIORITY_AHEAD;
+            else
+                return Double.POSITIVE_INFINITY;
+            double dx = x0 + scale / 2 - centerX;
+            double dy = y0 + scale / 2 - centerY;
+            return priority + (z == zoom ? 0 : PRIORITY_OTHER_ZOOM) + dx * dx + dy * dy;
+        }
+    }
+
+    private void fireTileLoaded(TileServer tileServer, int x, int y, int zoom) {
+        for (TileListener listener : listeners)
+            listener.tileLoaded(tileServer, x, y, zoom);
+    }
+
+    private void fireTilesAvailable(TileServer tileServer) {
+        for (TileListener listener : listeners)
+            listener.tilesAvailable(tileServer);
+    }
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.IOException;
+
+
+/**
+ * TileSource delivers the encoded bytes of tiles to a {@link MapPanel.TileServer}. Besides tileservers
+ * reached via http tiles can be read from a directory tree ({@link DirectoryTileSource}), a zip archive
+ * ({@link ZipTileSource}) or an MBTiles file ({@link MBTilesTileSource}).
+ *
+ * <p>Implementations are called from the tile loader threads concurrently and must be thread-safe.</p>
+ *
+ * @version $Revision$
+ */
+public interface TileSource {
+
+    /**
+     * Reads the encoded bytes of a tile in the usual z/x/y scheme of openstreetmap.
+     * @return the bytes or <code>null</code> if the source has no such tile
+     * @throws IOException if reading the tile failed
+     */
+    byte[] loadTile(int zoom, int x, int y) throws IOException;
+
+    /**
+     * @return the highest zoom level available from this source
+     */
+    int getMaxZoom();
+
+    /**
+     * @return <code>true</code> if tiles are read from the local machine and there is no point in keeping
+     *         them in a {@link DiskTileStore}
+     */
+    boolean isLocal();
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * TileStatistics counts what the {@link TileService} and its cache do, so one can tell whether a slow
+ * map is network-bound, decode-bound or paint-bound. All counters are atomics and updated without locks.
+ *
+ * <p>Hits are lookups answered by a decoded tile, warm hits lookups answered by decoding the encoded bytes
+ * in memory, misses lookups that had to load the tile. Evictions count tiles demoted from the decoded tier
+ * as well as tiles dropped from the encoded tier.</p>
+ *
+ * @version $Revision$
+ */
+public final class TileStatistics implements TileStatisticsMBean {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong warmHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong tilesLoaded = new AtomicLong();
+    private final AtomicLong bytesLoaded = new AtomicLong();
+    private final AtomicLong diskReads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong cancellations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private MapPanel.TileCache cache;
+
+    TileStatistics() {
+    }
+
+    void setCache(MapPanel.TileCache cache) {
+        this.cache = cache;
+    }
+
+    //-------------------------------------------------------------------------
+    // updates
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void warmHit() {
+        warmHits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    AtomicLong getEvictionCounter() {
+        return evictions;
+    }
+
+    void loaded(int bytes, boolean fromDisk) {
+        tilesLoaded.incrementAndGet();
+        bytesLoaded.addAndGet(bytes);
+        if (fromDisk)
+            diskReads.incrementAndGet();
+    }
+
+    void failed() {
+        loadFailures.incrementAndGet();
+    }
+
+    void cancelled() {
+        queued.decrementAndGet();
+        cancellations.incrementAndGet();
+    }
+
+    void rejected() {
+        rejections.incrementAndGet();
+    }
+
+    void decoded(long nanos) {
+        decodes.incrementAndGet();
+        decodeNanos.addAndGet(nanos);
+    }
+
+    void queued() {
+        queued.incrementAndGet();
+    }
+
+    void started() {
+        queued.decrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    void finished() {
+        inFlight.decrementAndGet();
+    }
+
+    //-------------------------------------------------------------------------
+    // TileStatisticsMBean
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getWarmHitCount() {
+        return warmHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long hits = getHitCount() + getWarmHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of tiles read from the disk store or the tileservers
+     */
+    public long getTilesLoaded() {
+        return tilesLoaded.get();
+    }
+
+    public long getBytesLoaded() {
+        return bytesLoaded.get();
+    }
+
+    public long getDiskReads() {
+        return diskReads.get();
+    }
+
+    public long getLoadFailures() {
+        return loadFailures.get();
+    }
+
+    /**
+     * @return the number of queued tiles dropped because they left the viewport
+     */
+    public long getCancelledCount() {
+        return cancellations.get();
+    }
+
+    /**
+     * @return the number of tiles not requested because their tileserver was failing, these count as
+     *         load failures as well
+     */
+    public long getRejectedCount() {
+        return rejections.get();
+    }
+
+    public long getDecodeCount() {
+        return decodes.get();
+    }
+
+    public double getAverageDecodeMillis() {
+        long decodes = getDecodeCount();
+        return decodes == 0 ? 0 : decodeNanos.get() / 1e6 / decodes;
+    }
+
+    /**
+     * @return the number of tiles being loaded right now
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of tiles waiting for a loader thread
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getCacheBytes() {
+        return cache == null ? 0 : cache.getBytes();
+    }
+
+    public long getCacheEncodedBytes() {
+        return cache == null ? 0 : cache.getEncodedBytes();
+    }
+
+    /**
+     * Resets all counters, in-flight and queued tiles are not counters and stay.
+     */
+    public void reset() {
+        hits.set(0);
+        warmHits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        tilesLoaded.set(0);
+        bytesLoaded.set(0);
+        diskReads.set(0);
+        loadFailures.set(0);
+        cancellations.set(0);
+        rejections.set(0);
+        decodes.set(0);
+        decodeNanos.set(0);
+    }
+
+    public String toString() {
+        return "TileStatistics [hits=" + getHitCount() + ", warmHits=" + getWarmHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", tilesLoaded=" + getTilesLoaded() + ", bytesLoaded=" + getBytesLoaded()
+                + ", diskReads=" + getDiskReads() + ", loadFailures=" + getLoadFailures() + ", cancelled=" + getCancelledCount() + ", rejected=" + getRejectedCount() + ", decodes=" + getDecodeCount()
+                + ", inFlight=" + getInFlight() + ", queued=" + getQueued() + "]";
+    }
+}
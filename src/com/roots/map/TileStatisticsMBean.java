@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+
+
+/**
+ * Management interface of {@link TileStatistics}, registered as <code>com.roots.map:type=TileService</code>.
+ *
+ * @version $Revision$
+ */
+public interface TileStatisticsMBean {
+
+    long getHitCount();
+
+    long getWarmHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getEvictionCount();
+
+    long getTilesLoaded();
+
+    long getBytesLoaded();
+
+    long getDiskReads();
+
+    long getLoadFailures();
+
+    long getCancelledCount();
+
+    long getRejectedCount();
+
+    long getDecodeCount();
+
+    double getAverageDecodeMillis();
+
+    int getInFlight();
+
+    int getQueued();
+
+    long getCacheBytes();
+
+    long getCacheEncodedBytes();
+
+    void reset();
+}
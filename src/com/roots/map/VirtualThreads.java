@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * VirtualThreads creates virtual threads on jvms that have them (java 21 and later) and falls
+ * back to daemon platform threads otherwise. The api is looked up reflectively, so the map
+ * still runs on older jvms.
+ *
+ * <p>Virtual threads are used if the system property <code>mappanel.loader.virtualthreads</code>
+ * is <code>true</code>.</p>
+ *
+ * @version $Revision$
+ */
+final class VirtualThreads {
+
+    private static final Logger log = Logger.getLogger(VirtualThreads.class.getName());
+
+    /* constants ... */
+    private static final boolean ENABLED = Boolean.getBoolean("mappanel.loader.virtualthreads");
+    /* Thread.ofVirtual(), null if not available or not enabled */
+    private static final Method OF_VIRTUAL = ENABLED ? lookup() : null;
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            log.log(Level.WARNING, "virtual threads are not available on java " + System.getProperty("java.version") + ", using platform threads");
+            return null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if virtual threads are enabled and available
+     */
+    static boolean isEnabled() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Starts a single thread, virtual if enabled, otherwise a daemon thread.
+     */
+    static Thread start(String name, Runnable r) {
+        Thread t = factory(name).newThread(r);
+        t.start();
+        return t;
+    }
+
+    private static ThreadFactory factory(final String name) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                log.log(Level.WARNING, "failed to create virtual threads, using platform threads", e);
+            }
+        }
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
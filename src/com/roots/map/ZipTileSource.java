@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2012 Stepan Rutz.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Stepan Rutz - initial implementation
+ *******************************************************************************/
+
+package com.roots.map;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * ZipTileSource reads tiles from a zip archive containing a <code>zoom/x/y.png</code> tree, optionally
+ * below some top level directory.
+ *
+ * <p>The central directory is read once when the source is opened, tiles are then read with positional
+ * reads on a {@link FileChannel} so any number of loader threads can read concurrently. Entries may be
+ * stored or deflated, zip64 archives are not supported.</p>
+ *
+ * @version $Revision$
+ */
+public final class ZipTileSource implements TileSource, Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22, CEN_SIZE = 46, LOC_SIZE = 30;
+
+    /* entry: local header offset, compressed size, uncompressed size, method */
+    private final HashMap<Long, long[]> entries = new HashMap<Long, long[]>();
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private int maxZoom = -1;
+
+    public ZipTileSource(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        try {
+            readCentralDirectory();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        if (maxZoom < 0) {
+            raf.close();
+            throw new IOException("no tiles in " + file);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = channel.size();
+        int tail = (int) Math.min(size, EOCD_SIZE + 0xffff);
+        ByteBuffer buffer = read(size - tail, tail);
+        int eocd = -1;
+        for (int i = tail - EOCD_SIZE; i >= 0; --i) {
+            if (buffer.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+            throw new IOException("not a zip file: " + file);
+        int count = buffer.getShort(eocd + 10) & 0xffff;
+        long cenSize = buffer.getInt(eocd + 12) & 0xffffffffL;
+        long cenOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || cenOffset == 0xffffffffL)
+            throw new IOException("zip64 archives are not supported: " + file);
+        ByteBuffer cen = read(cenOffset, (int) cenSize);
+        int pos = 0;
+        for (int i = 0; i < count; ++i) {
+            if (cen.getInt(pos) != CEN_SIGNATURE)
+                throw new IOException("damaged central directory in " + file);
+            int method = cen.getShort(pos + 10) & 0xffff;
+            long compressedSize = cen.getInt(pos + 20) & 0xffffffffL;
+            long uncompressedSize = cen.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = cen.getShort(pos + 28) & 0xffff;
+            int extraLength = cen.getShort(pos + 30) & 0xffff;
+            int commentLength = cen.getShort(pos + 32) & 0xffff;
+            long offset = cen.getInt(pos + 42) & 0xffffffffL;
+            byte[] name = new byte[nameLength];
+            cen.position(pos + CEN_SIZE);
+            cen.get(name);
+            addEntry(new String(name, "UTF-8"), new long[] { offset, compressedSize, uncompressedSize, method });
+            pos += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Registers an entry if its name ends with <code>zoom/x/y.ext</code>.
+     */
+    private void addEntry(String name, long[] entry) {
+        String[] parts = name.split("/");
+        if (parts.length < 3)
+            return;
+        String last = parts[parts.length - 1];
+        int dot = last.lastIndexOf('.');
+        if (dot <= 0)
+            return;
+        try {
+            int zoom = Integer.parseInt(parts[parts.length - 3]);
+            int x = Integer.parseInt(parts[parts.length - 2]);
+            int y = Integer.parseInt(last.substring(0, dot));
+            entries.put(key(zoom, x, y), entry);
+            maxZoom = Math.max(maxZoom, zoom);
+        } catch (NumberFormatException e) {
+            // not a tile
+        }
+    }
+
+    private static long key(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0)
+                throw new IOException("unexpected end of file " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public byte[] loadTile(int zoom, int x, int y) throws IOException {
+        long[] entry = entries.get(key(zoom, x, y));
+        if (entry == null)
+            return null;
+        ByteBuffer loc = read(entry[0], LOC_SIZE);
+        if (loc.getInt(0) != LOC_SIGNATURE)
+            throw new IOException("damaged local header for tile " + zoom + "/" + x + "/" + y + " in " + file);
+        long dataOffset = entry[0] + LOC_SIZE + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+        ByteBuffer data = read(dataOffset, (int) entry[1]);
+        if (entry[3] == 0)
+            return data.array();
+        if (entry[3] != 8)
+            throw new IOException("unsupported compression method " + entry[3] + " in " + file);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            byte[] result = new byte[(int) entry[2]];
+            int offset = 0;
+            while (offset < result.length) {
+                int n = inflater.inflate(result, offset, result.length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                offset += n;
+            }
+            if (offset != result.length)
+                throw new IOException("truncated tile " + zoom + "/" + x + "/" + y + " in " + file);
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("damaged tile " + zoom + "/" + x + "/" + y + " in " + file, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public boolean isLocal() {
+        return true;
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    public String toString() {
+        return file.toURI().toString();
+    }
+}